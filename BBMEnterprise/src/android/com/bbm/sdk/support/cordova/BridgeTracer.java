@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import com.bbm.sdk.service.ProtocolMessage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Opt-in tracing of the latency of events from core to the JS app, so a slow
+ * UI update can be pinned on core, matching in the plugin, the main thread
+ * queue, the bridge or the JS handlers.
+ *
+ * A sampled message from core starts a span when it arrives in onMessage. Each
+ * event sent to the JS app for it is stamped when it is picked up to be sent,
+ * once it is serialized and once it is handed to cordova. The event carries a
+ * trace id that the JS Monitor reports back with the times it received and
+ * finished handling the event. Completed events are written to a file in the
+ * Chrome trace event format, which can be loaded in chrome://tracing or
+ * Perfetto to see every stage on one timeline.
+ *
+ * Every event has a queue stage for the time spent waiting in the main thread
+ * queue, from wrap. It is empty for events sent straight from the thread the
+ * message arrived on. The newest MAX_TRACE_FILES trace files are kept.
+ *
+ * Like CordovaHelper this is static, so any thread that sends events can
+ * stamp them without the tracer being passed around.
+ */
+public class BridgeTracer {
+    private static final String TAG = "BridgeTracer";
+
+    //events not reported back by the JS app are dropped past this many
+    private static final int MAX_PENDING = 1000;
+
+    //older trace files are deleted when a trace starts
+    static final int MAX_TRACE_FILES = 5;
+
+    private static final String TRACE_FILE_PREFIX = "trace-";
+    private static final String TRACE_FILE_SUFFIX = ".json";
+
+    private static class Span {
+        final String type;
+        final String listName;
+        final long arrivalTime;
+        //when the work was posted to the main thread and when it ran there, 0 if it wasn't
+        final long postTime;
+        final long runTime;
+
+        Span(final String type, final String listName, final long arrivalTime, final long postTime, final long runTime) {
+            this.type = type;
+            this.listName = listName;
+            this.arrivalTime = arrivalTime;
+            this.postTime = postTime;
+            this.runTime = runTime;
+        }
+    }
+
+    /**
+     * One event sent to the JS app for a traced message.
+     */
+    public static class Event {
+        final long id;
+        final Span span;
+        final String eventKey;
+        long dequeueTime;
+        long serializedTime;
+        long sentTime;
+
+        Event(final long id, final Span span, final String eventKey) {
+            this.id = id;
+            this.span = span;
+            this.eventKey = eventKey;
+        }
+
+        public long getId() {
+            return id;
+        }
+    }
+
+    /**
+     * One trace file. Only the writer thread uses it after start, so a
+     * writer still finishing an old trace can't affect a new one.
+     */
+    private static class TraceWriter {
+        final File file;
+        final Writer writer;
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        //maps System.nanoTime to wall clock microseconds, which is the clock the JS app reports in
+        final long wallClockOffsetMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+        boolean firstEvent = true;
+
+        TraceWriter(final File file) throws IOException {
+            this.file = file;
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        }
+
+        long toMicros(final long nanoTime) {
+            return wallClockOffsetMicros + nanoTime / 1000;
+        }
+    }
+
+    //the span of the message being processed on this thread
+    private static final ThreadLocal<Span> sCurrentSpan = new ThreadLocal<>();
+
+    private static volatile boolean sEnabled;
+    private static volatile double sSampleRate;
+    private static final Random sRandom = new Random();
+    private static long sNextId;
+
+    private static final LinkedHashMap<Long, Event> sPending = new LinkedHashMap<>();
+
+    private static TraceWriter sTraceWriter;
+
+    /**
+     * Start tracing into a new file in dir.
+     *
+     * @param sampleRate the fraction of messages from core to trace, from 0 to 1
+     * @return the trace file
+     */
+    public static synchronized File start(final File dir, final double sampleRate) throws IOException {
+        stop();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        deleteOldTraces(dir);
+        TraceWriter traceWriter = new TraceWriter(new File(dir, TRACE_FILE_PREFIX + System.currentTimeMillis() + TRACE_FILE_SUFFIX));
+        traceWriter.writer.write("[\n");
+        sTraceWriter = traceWriter;
+        sSampleRate = Math.max(0, Math.min(1, sampleRate));
+        sEnabled = true;
+        Log.i(TAG, "start: tracing to " + traceWriter.file + " sampleRate=" + sSampleRate);
+        return traceWriter.file;
+    }
+
+    /**
+     * Delete the oldest trace files in dir so there is room for a new one
+     * within MAX_TRACE_FILES.
+     */
+    static void deleteOldTraces(final File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(TRACE_FILE_PREFIX) && name.endsWith(TRACE_FILE_SUFFIX);
+            }
+        });
+        if (files == null || files.length < MAX_TRACE_FILES) {
+            return;
+        }
+
+        //named by start time so the oldest sort first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File first, final File second) {
+                return Long.compare(startTime(first), startTime(second));
+            }
+        });
+        for (int i = 0; i <= files.length - MAX_TRACE_FILES; ++i) {
+            if (!files[i].delete()) {
+                Log.w(TAG, "deleteOldTraces: failed to delete " + files[i]);
+            }
+        }
+    }
+
+    private static long startTime(final File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(TRACE_FILE_PREFIX.length(), name.length() - TRACE_FILE_SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stop tracing and close the trace file. Events still waiting for the JS
+     * app to report back are dropped.
+     *
+     * @return the trace file, or null if not tracing
+     */
+    public static synchronized File stop() {
+        if (!sEnabled) {
+            return null;
+        }
+        sEnabled = false;
+        sPending.clear();
+
+        final TraceWriter traceWriter = sTraceWriter;
+        sTraceWriter = null;
+        traceWriter.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    traceWriter.writer.write("\n]\n");
+                    traceWriter.writer.close();
+                } catch (IOException ioe) {
+                    Log.e(TAG, "stop: failed to close trace file", ioe);
+                }
+            }
+        });
+        traceWriter.executor.shutdown();
+        Log.i(TAG, "stop: traced to " + traceWriter.file);
+        return traceWriter.file;
+    }
+
+    /**
+     * Called when a message arrives from core. If the message is sampled the
+     * events sent for it on this thread are traced until end is called.
+     */
+    public static void begin(final ProtocolMessage message) {
+        if (sEnabled && sRandom.nextDouble() < sSampleRate) {
+            long arrivalTime = System.nanoTime();
+            JSONObject data = message.getData();
+            sCurrentSpan.set(new Span(message.getType(), data != null ? data.optString("type", null) : null, arrivalTime, 0, 0));
+        }
+    }
+
+    public static void end() {
+        sCurrentSpan.remove();
+    }
+
+    /**
+     * Check if the message being processed on this thread is traced, its
+     * events must then be sent through CordovaHelper to be stamped.
+     */
+    public static boolean isTracing() {
+        return sEnabled && sCurrentSpan.get() != null;
+    }
+
+    /**
+     * Keep tracing the message being processed when r runs later on another
+     * thread, such as the main thread, so the time spent queued is included
+     * and shown as the queue stage of its events.
+     */
+    public static Runnable wrap(final Runnable r) {
+        final Span span = sEnabled ? sCurrentSpan.get() : null;
+        if (span == null) {
+            return r;
+        }
+        final long postTime = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                sCurrentSpan.set(new Span(span.type, span.listName, span.arrivalTime, postTime, System.nanoTime()));
+                try {
+                    r.run();
+                } finally {
+                    sCurrentSpan.remove();
+                }
+            }
+        };
+    }
+
+    /**
+     * Called when an event is picked up to be sent to the JS app.
+     *
+     * @return the event to stamp as it is sent, or null if it isn't traced
+     */
+    public static Event onDequeue(final String eventKey) {
+        Span span = sEnabled ? sCurrentSpan.get() : null;
+        if (span == null) {
+            return null;
+        }
+        Event event;
+        synchronized (BridgeTracer.class) {
+            event = new Event(++sNextId, span, eventKey);
+        }
+        event.dequeueTime = System.nanoTime();
+        return event;
+    }
+
+    public static void onSerialized(final Event event) {
+        if (event != null) {
+            event.serializedTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called once the event was handed to cordova, the event waits for the JS
+     * app to report back.
+     */
+    public static void onSent(final Event event) {
+        if (event == null) {
+            return;
+        }
+        event.sentTime = System.nanoTime();
+        synchronized (BridgeTracer.class) {
+            if (!sEnabled) {
+                return;
+            }
+            sPending.put(event.id, event);
+            if (sPending.size() > MAX_PENDING) {
+                Iterator<Map.Entry<Long, Event>> iter = sPending.entrySet().iterator();
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Called when the JS app reports an event was handled, this completes the
+     * event and writes it to the trace file.
+     *
+     * @param receivedTime when the JS Monitor got the event, in wall clock milliseconds
+     * @param handledTime when the JS handlers were done with the event, in wall clock milliseconds
+     */
+    public static synchronized void onHandled(final long id, final double receivedTime, final double handledTime) {
+        final Event event = sPending.remove(id);
+        if (event == null || !sEnabled) {
+            return;
+        }
+
+        final TraceWriter traceWriter = sTraceWriter;
+        final long receivedMicros = (long)(receivedTime * 1000);
+        final long handledMicros = (long)(handledTime * 1000);
+        traceWriter.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(traceWriter, event, receivedMicros, handledMicros);
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "onHandled: failed to write event " + event.id, e);
+                }
+            }
+        });
+    }
+
+    //runs on the writer thread
+    private static void write(final TraceWriter traceWriter, final Event event, final long receivedMicros, final long handledMicros) throws IOException, JSONException {
+        long arrival = traceWriter.toMicros(event.span.arrivalTime);
+        long dequeue = traceWriter.toMicros(event.dequeueTime);
+        long serialized = traceWriter.toMicros(event.serializedTime);
+        long sent = traceWriter.toMicros(event.sentTime);
+        //an event sent without going through the main thread queue gets an empty queue stage
+        long posted = event.span.postTime != 0 ? traceWriter.toMicros(event.span.postTime) : dequeue;
+        long ran = event.span.runTime != 0 ? traceWriter.toMicros(event.span.runTime) : dequeue;
+
+        //the whole event first so the stages nest under it
+        writeSlice(traceWriter, event, "event", arrival, handledMicros);
+        writeSlice(traceWriter, event, "process", arrival, dequeue);
+        writeSlice(traceWriter, event, "queue", posted, ran);
+        writeSlice(traceWriter, event, "serialize", dequeue, serialized);
+        writeSlice(traceWriter, event, "send", serialized, sent);
+        writeSlice(traceWriter, event, "bridge", sent, receivedMicros);
+        writeSlice(traceWriter, event, "handler", receivedMicros, handledMicros);
+        traceWriter.writer.flush();
+    }
+
+    //runs on the writer thread
+    private static void writeSlice(final TraceWriter traceWriter, final Event event, final String name, final long start, final long end) throws IOException, JSONException {
+        JSONObject args = new JSONObject();
+        args.put("id", event.id);
+        args.put("message", event.span.type);
+        args.put("list", event.span.listName);
+        args.put("eventKey", event.eventKey);
+        args.put("queued", event.span.postTime != 0);
+
+        //each event gets its own row so overlapping events don't hide each other
+        JSONObject slice = new JSONObject();
+        slice.put("name", name);
+        slice.put("cat", "bridge");
+        slice.put("ph", "X");
+        slice.put("ts", start);
+        slice.put("dur", Math.max(0, end - start));
+        slice.put("pid", 1);
+        slice.put("tid", event.id);
+        slice.put("args", args);
+
+        if (!traceWriter.firstEvent) {
+            traceWriter.writer.write(",\n");
+        }
+        traceWriter.firstEvent = false;
+        traceWriter.writer.write(slice.toString());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.app.Activity;
+import android.app.Application;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import android.util.Log;
+
+import com.bbm.sdk.support.ui.widgets.voip.SupportVoipManager;
+
+import org.apache.cordova.CallbackContext;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures the time from makeCall until the call activity is shown.
+ *
+ * The call activity is started by the support library, so this watches for the
+ * first activity from the support library's voip package, the one
+ * SupportVoipManager is in, to be resumed after a call is started. Other
+ * activities, such as dialogs from the app or other plugins, are ignored.
+ * The time is reported to the JS app when its makeCall promise is resolved,
+ * and is kept for getStats.
+ */
+public class CallSetupTracker implements Application.ActivityLifecycleCallbacks {
+    private static final String TAG = "CallSetupTracker";
+
+    //give up waiting for the call activity after this long
+    private static final long TIMEOUT_MS = 30000;
+
+    //the call activities are in the same package as SupportVoipManager
+    private static final String CALL_ACTIVITY_PACKAGE = SupportVoipManager.class.getPackage().getName() + '.';
+
+    private final Handler mHandler;
+    private final Activity mCordovaActivity;
+
+    //the pending makeCall, null when not waiting for a call activity
+    private CallbackContext mPendingCallback;
+    private long mCallStartTime;
+
+    //true if the call manager was already running when the last call was made
+    private boolean mWarm;
+    private int mCallCount;
+    private long mLastSetupTime = -1;
+    private long mTotalSetupTime;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mPendingCallback != null) {
+                Log.w(TAG, "call activity not shown after " + TIMEOUT_MS + "ms");
+                mPendingCallback.error("Call screen was not shown");
+                mPendingCallback = null;
+            }
+        }
+    };
+
+    public CallSetupTracker(final Handler handler, final Activity cordovaActivity) {
+        mHandler = handler;
+        mCordovaActivity = cordovaActivity;
+        cordovaActivity.getApplication().registerActivityLifecycleCallbacks(this);
+    }
+
+    public void release() {
+        mCordovaActivity.getApplication().unregisterActivityLifecycleCallbacks(this);
+        mHandler.removeCallbacks(mTimeout);
+    }
+
+    /**
+     * Remember if the voice and video call manager was already running when
+     * the call was made.
+     */
+    public void setWarm(final boolean warm) {
+        mWarm = warm;
+    }
+
+    /**
+     * Start timing a call. Must be called on the main thread.
+     *
+     * @param startTime when makeCall was received, from SystemClock.elapsedRealtime()
+     */
+    public void callStarted(final long startTime, final CallbackContext callbackContext) {
+        if (mPendingCallback != null) {
+            mPendingCallback.error("Replaced by a newer call");
+        }
+        mPendingCallback = callbackContext;
+        mCallStartTime = startTime;
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.postDelayed(mTimeout, TIMEOUT_MS);
+    }
+
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("lastCallWarm", mWarm);
+        stats.put("count", mCallCount);
+        stats.put("lastSetupTime", mLastSetupTime);
+        stats.put("averageSetupTime", mCallCount > 0 ? mTotalSetupTime / mCallCount : -1);
+        return stats;
+    }
+
+    @Override
+    public void onActivityResumed(final Activity activity) {
+        if (mPendingCallback == null || !activity.getClass().getName().startsWith(CALL_ACTIVITY_PACKAGE)) {
+            return;
+        }
+
+        long setupTime = SystemClock.elapsedRealtime() - mCallStartTime;
+        ++mCallCount;
+        mLastSetupTime = setupTime;
+        mTotalSetupTime += setupTime;
+        Log.d(TAG, "call activity=" + activity.getClass().getName() + " shown after " + setupTime + "ms warm=" + mWarm);
+
+        mHandler.removeCallbacks(mTimeout);
+        try {
+            JSONObject result = new JSONObject();
+            result.put("setupTime", setupTime);
+            mPendingCallback.success(result);
+        } catch (JSONException je) {
+            mPendingCallback.error(je.toString());
+        }
+        mPendingCallback = null;
+    }
+
+    @Override
+    public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(final Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(final Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(final Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(final Activity activity, final Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(final Activity activity) {
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Maintains aggregates of the chat and chatMessage lists so the JS app can
+ * show unread badges and last message previews without observing every chat
+ * and message.
+ *
+ * The JS app observes these as the 'aggregate' pseudo-global, with a property
+ * naming the aggregate:
+ * <ul>
+ * <li>{name: 'totalUnread'} the number of unread messages in all chats</li>
+ * <li>{name: 'chatUnread', chatId: ...} the number of unread messages in a chat</li>
+ * <li>{name: 'chatLastMessage', chatId: ...} the newest message of a chat</li>
+ * </ul>
+ * An event is only sent when an observed aggregate's value changes.
+ *
+ * The unread counts are the numUnread of each chat, which core maintains.
+ * When the first aggregate is observed the whole chat list is requested from
+ * core, so the counts are right after a cold start without waiting for chat
+ * traffic. The newest message of an observed chat is requested by the
+ * lastMessage of the chat when it isn't known yet, and updated from the
+ * chatMessage traffic. Those requests are answered to the plugin only and not
+ * forwarded to the JS app. None of this depends on the chat message store.
+ *
+ * This is only accessed from the main thread.
+ */
+public class ChatAggregates {
+    private static final String TAG = "ChatAggregates";
+
+    public static final String EVENT_KEY = "aggregate";
+
+    //prefix of the cookie of the chatMessage requests made for the aggregates
+    public static final String COOKIE_PREFIX = "aggregate-";
+
+    /**
+     * Used to request what the aggregates are derived from.
+     */
+    public interface Sender {
+        void requestChats() throws JSONException;
+        void requestChatMessages(JSONArray elements, String cookie) throws JSONException;
+    }
+
+    private static class Subscription {
+        final JSONObject property;
+        final String name;
+        final String chatId;
+        Object lastSentValue;
+
+        Subscription(final JSONObject property, final String name, final String chatId) {
+            this.property = property;
+            this.name = name;
+            this.chatId = chatId;
+        }
+    }
+
+    private final Sender mSender;
+
+    //true once the chat list was requested since the last reset
+    private boolean mChatsRequested;
+
+    //chatId -> numUnread of the chat
+    private final HashMap<String, Integer> mUnread = new HashMap<>();
+    private int mTotalUnread;
+
+    //chatId -> lastMessage of the chat
+    private final HashMap<String, Long> mLastMessageIds = new HashMap<>();
+
+    //chatId -> newest message seen
+    private final HashMap<String, JSONObject> mLastMessages = new HashMap<>();
+
+    //chatId + messageId of the last messages requested and not received yet
+    private final HashSet<String> mRequestedMessages = new HashSet<>();
+
+    //aggregate name + chatId -> what the JS app observes
+    private final HashMap<String, Subscription> mSubscriptions = new HashMap<>();
+
+    public ChatAggregates(final Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Start sending an aggregate to the JS app, the current value is sent
+     * right away and again once it is loaded from core.
+     */
+    public void observe(final JSONObject property) throws JSONException {
+        String name = property.getString("name");
+        String chatId = property.optString("chatId", null);
+        if (!"totalUnread".equals(name) && chatId == null) {
+            throw new JSONException("chatId is required for aggregate " + name);
+        }
+
+        String key = makeKey(name, chatId);
+        Subscription subscription = mSubscriptions.get(key);
+        if (subscription == null) {
+            subscription = new Subscription(property, name, chatId);
+            mSubscriptions.put(key, subscription);
+        }
+
+        if (!mChatsRequested) {
+            mChatsRequested = true;
+            mSender.requestChats();
+        }
+        if ("chatLastMessage".equals(name)) {
+            requestLastMessage(chatId);
+        }
+        send(subscription, true);
+    }
+
+    public void observeStop(final JSONObject property) {
+        mSubscriptions.remove(makeKey(property.optString("name"), property.optString("chatId", null)));
+    }
+
+    /**
+     * @return true if the JS app observes any aggregate, so the chat and
+     * chatMessage lists from core are needed.
+     */
+    public boolean isObserved() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * Forget everything loaded from core, such as when the session ends or core
+     * restarts, and send the observed aggregates that changed. Anything still
+     * observed is requested again.
+     */
+    public void reset(final boolean reload) throws JSONException {
+        mChatsRequested = false;
+        mUnread.clear();
+        mTotalUnread = 0;
+        mLastMessageIds.clear();
+        mLastMessages.clear();
+        mRequestedMessages.clear();
+
+        for (Subscription subscription : mSubscriptions.values()) {
+            send(subscription, false);
+        }
+
+        if (reload && !mSubscriptions.isEmpty()) {
+            mChatsRequested = true;
+            mSender.requestChats();
+        }
+    }
+
+    /**
+     * Update the aggregates from a chat list message from core, and send the
+     * observed ones that changed.
+     *
+     * @param type the type of the list message, such as listAll or listChange
+     */
+    public void updateChats(final String type, final JSONArray elements) throws JSONException {
+        if ("listResync".equals(type)) {
+            return;
+        }
+
+        HashSet<String> changedChats = new HashSet<>();
+        if ("listAll".equals(type)) {
+            //the whole list, anything not in it is gone
+            changedChats.addAll(mUnread.keySet());
+            changedChats.addAll(mLastMessageIds.keySet());
+            mUnread.clear();
+            mTotalUnread = 0;
+            mLastMessageIds.clear();
+        }
+
+        for (int i = 0; elements != null && i < elements.length(); ++i) {
+            JSONObject element = elements.optJSONObject(i);
+            String chatId = element != null ? element.optString("chatId", null) : null;
+            if (chatId == null) {
+                continue;
+            }
+            changedChats.add(chatId);
+
+            if ("listRemove".equals(type)) {
+                Integer unread = mUnread.remove(chatId);
+                mTotalUnread -= unread != null ? unread : 0;
+                mLastMessageIds.remove(chatId);
+                mLastMessages.remove(chatId);
+                continue;
+            }
+
+            //a listChange only has what changed
+            if (element.has("numUnread")) {
+                int unread = Math.max(0, element.optInt("numUnread"));
+                Integer previous = mUnread.put(chatId, unread);
+                mTotalUnread += unread - (previous != null ? previous : 0);
+            }
+            if (element.has("lastMessage")) {
+                mLastMessageIds.put(chatId, element.optLong("lastMessage"));
+                if (mSubscriptions.containsKey(makeKey("chatLastMessage", chatId))) {
+                    requestLastMessage(chatId);
+                }
+            }
+        }
+
+        sendChanged(changedChats);
+    }
+
+    /**
+     * Update the aggregates from a chatMessage list message from core, and
+     * send the observed ones that changed.
+     *
+     * @param type the type of the list message, such as listAdd or listChange
+     */
+    public void update(final String type, final JSONArray elements) throws JSONException {
+        if (elements == null || elements.length() == 0 || "listResync".equals(type)) {
+            return;
+        }
+
+        HashSet<String> changedChats = new HashSet<>();
+        for (int i = 0; i < elements.length(); ++i) {
+            JSONObject element = elements.optJSONObject(i);
+            String chatId = element != null ? element.optString("chatId", null) : null;
+            long messageId = parseMessageId(element != null ? element.optString("messageId", null) : null);
+            if (chatId != null && messageId >= 0) {
+                mRequestedMessages.remove(makeKey(chatId, Long.toString(messageId)));
+                updateLastMessage(type, chatId, messageId, element);
+                changedChats.add(chatId);
+            }
+        }
+
+        sendChanged(changedChats);
+    }
+
+    /**
+     * Request the newest message of a chat if the lastMessage of the chat is
+     * known and newer than the message held for it.
+     */
+    private void requestLastMessage(final String chatId) throws JSONException {
+        Long messageId = mLastMessageIds.get(chatId);
+        if (messageId == null || messageId <= 0) {
+            return;
+        }
+        JSONObject lastMessage = mLastMessages.get(chatId);
+        if (lastMessage != null && parseMessageId(lastMessage.optString("messageId", null)) >= messageId) {
+            return;
+        }
+        if (!mRequestedMessages.add(makeKey(chatId, messageId.toString()))) {
+            return;
+        }
+
+        JSONObject element = new JSONObject();
+        element.put("chatId", chatId);
+        element.put("messageId", messageId.toString());
+        JSONArray elements = new JSONArray();
+        elements.put(element);
+        mSender.requestChatMessages(elements, COOKIE_PREFIX + UUID.randomUUID());
+    }
+
+    private void sendChanged(final HashSet<String> changedChats) throws JSONException {
+        if (!changedChats.isEmpty()) {
+            for (Subscription subscription : mSubscriptions.values()) {
+                if (subscription.chatId == null || changedChats.contains(subscription.chatId)) {
+                    send(subscription, false);
+                }
+            }
+        }
+    }
+
+    private void updateLastMessage(final String type, final String chatId, final long messageId, final JSONObject element) throws JSONException {
+        JSONObject lastMessage = mLastMessages.get(chatId);
+        long lastMessageId = lastMessage != null ? parseMessageId(lastMessage.optString("messageId", null)) : -1;
+
+        if ("listRemove".equals(type)) {
+            //only the newest message is kept, so nothing is known to replace it with
+            if (messageId == lastMessageId) {
+                mLastMessages.remove(chatId);
+            }
+        } else if ("listChange".equals(type)) {
+            if (messageId == lastMessageId) {
+                JSONObject merged = new JSONObject(lastMessage.toString());
+                for (Iterator<String> iter = element.keys(); iter.hasNext(); ) {
+                    String property = iter.next();
+                    merged.put(property, element.get(property));
+                }
+                mLastMessages.put(chatId, merged);
+            }
+        } else if (messageId >= lastMessageId) {
+            mLastMessages.put(chatId, element);
+        }
+    }
+
+    private Object getValue(final Subscription subscription) {
+        switch (subscription.name) {
+        case "totalUnread":
+            return mTotalUnread;
+        case "chatUnread": {
+            Integer unread = mUnread.get(subscription.chatId);
+            return unread != null ? unread : 0;
+        }
+        case "chatLastMessage":
+            return mLastMessages.get(subscription.chatId);
+        default:
+            return null;
+        }
+    }
+
+    private void send(final Subscription subscription, final boolean always) throws JSONException {
+        Object value = getValue(subscription);
+        if (!always && (value == null ? subscription.lastSentValue == null : value.equals(subscription.lastSentValue))) {
+            return;
+        }
+
+        subscription.lastSentValue = value;
+        Log.d(TAG, "send: aggregate=" + subscription.property + " value=" + value);
+        if (value instanceof JSONObject || value == null) {
+            CordovaHelper.sendChangedEvent(EVENT_KEY, subscription.property, (JSONObject)value, false);
+        } else {
+            CordovaHelper.sendChangedEvent(EVENT_KEY, subscription.property, (Number)value);
+        }
+    }
+
+    private static String makeKey(final String name, final String chatId) {
+        return chatId != null ? name + '\u0000' + chatId : name;
+    }
+
+    private static long parseMessageId(final String messageId) {
+        try {
+            return messageId != null ? Long.parseLong(messageId) : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
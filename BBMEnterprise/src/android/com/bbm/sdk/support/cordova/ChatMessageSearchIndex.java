@@ -0,0 +1,723 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An in memory inverted index of the content of the chat messages seen in the
+ * chatMessage list traffic, so the JS app can search chats without loading
+ * every message.
+ *
+ * Each term maps to the messages containing it and how often it occurs in each.
+ * A search returns the messages that contain every term of the query, ranked by
+ * the sum of term frequency times inverse document frequency, newest first for
+ * equal scores.
+ *
+ * A chat is indexed whole. Searching a chat the index doesn't have all of
+ * backfills it: its lastMessage is requested from core, then its older messages
+ * BACKFILL_PAGE_SIZE at a time, newest first. The search result says if the
+ * chat was complete, and searching again once the backfill is done finds
+ * every message of the chat.
+ *
+ * Memory is bounded: past MAX_DOCUMENTS the least recently updated chats are
+ * dropped whole. Only a single chat larger than that has its oldest messages
+ * dropped, and stays incomplete. Postings are packed into int arrays of
+ * message number and frequency. A dropped message is only marked as gone, and
+ * the postings are rebuilt once more of them are stale than live.
+ *
+ * Updates and backfills are done on a background thread. Searches can run on
+ * any thread.
+ */
+public class ChatMessageSearchIndex {
+    private static final String TAG = "ChatMessageSearchIndex";
+
+    //the cookie of every request sent to backfill a chat starts with this
+    public static final String COOKIE_PREFIX = "search-";
+
+    static final int MAX_DOCUMENTS = 20000;
+
+    //message ids requested from core at a time when backfilling a chat
+    static final int BACKFILL_PAGE_SIZE = 100;
+
+    /**
+     * Used to request what a chat is backfilled from.
+     */
+    public interface Sender {
+        void requestChat(String chatId, String cookie) throws JSONException;
+        void requestChatMessages(JSONArray elements, String cookie) throws JSONException;
+    }
+
+    //characters of context shown on each side of the first match in a snippet
+    private static final int SNIPPET_CONTEXT = 40;
+
+    //a posting is the document number shifted past the frequency, which is capped to fit
+    private static final int FREQUENCY_BITS = 8;
+    private static final int MAX_FREQUENCY = (1 << FREQUENCY_BITS) - 1;
+
+    private static class Document {
+        //index into mDocuments, changes when the postings are rebuilt
+        int number;
+        final String key;
+        final String chatId;
+        final String messageId;
+        final long messageIdValue;
+        final String content;
+        final int termCount;
+
+        Document(final String key, final String chatId, final String messageId, final long messageIdValue,
+                 final String content, final int termCount) {
+            this.key = key;
+            this.chatId = chatId;
+            this.messageId = messageId;
+            this.messageIdValue = messageIdValue;
+            this.content = content;
+            this.termCount = termCount;
+        }
+    }
+
+    //the messages containing a term, as packed postings in no particular order
+    private static class Postings {
+        int[] entries = new int[2];
+        int size;
+
+        void add(final int number, final int frequency) {
+            if (size == entries.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(entries, 0, grown, 0, size);
+                entries = grown;
+            }
+            entries[size++] = (number << FREQUENCY_BITS) | Math.min(frequency, MAX_FREQUENCY);
+        }
+    }
+
+    private static class Chat {
+        //messageId -> indexed message
+        final TreeMap<Long, Document> messages = new TreeMap<>();
+        //true once every message older than the live traffic was requested
+        boolean complete;
+    }
+
+    private static class Backfill {
+        final String chatId;
+        //the next message id to request, counting down, -1 until the chat's lastMessage is known
+        long next = -1;
+
+        Backfill(final String chatId) {
+            this.chatId = chatId;
+        }
+    }
+
+    private static class Match {
+        final Document document;
+        final double score;
+
+        Match(final Document document, final double score) {
+            this.document = document;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Match> BY_SCORE = new Comparator<Match>() {
+        @Override
+        public int compare(final Match first, final Match second) {
+            int result = Double.compare(second.score, first.score);
+            return result != 0 ? result : Long.compare(second.document.messageIdValue, first.document.messageIdValue);
+        }
+    };
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Sender mSender;
+
+    //document number -> indexed message, null once dropped until the postings are rebuilt
+    private final ArrayList<Document> mDocuments = new ArrayList<>();
+
+    //chatId + messageId -> indexed message
+    private final HashMap<String, Document> mKeys = new HashMap<>();
+
+    //chatId -> indexed messages, least recently updated chat first
+    private final LinkedHashMap<String, Chat> mChats = new LinkedHashMap<>();
+
+    //chatId -> backfill in progress, and the cookie of its pending request -> the backfill
+    private final HashMap<String, Backfill> mBackfills = new HashMap<>();
+    private final HashMap<String, Backfill> mBackfillCookies = new HashMap<>();
+
+    //term -> messages containing it
+    private final HashMap<String, Postings> mPostings = new HashMap<>();
+
+    private int mLivePostings;
+    private int mStalePostings;
+
+    public ChatMessageSearchIndex(final Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * Stop the background thread. Anything passed in after this is ignored.
+     */
+    public void close() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Drop everything indexed, such as when the session ends.
+     */
+    public void clear() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageSearchIndex.this) {
+                    mDocuments.clear();
+                    mKeys.clear();
+                    mChats.clear();
+                    mBackfills.clear();
+                    mBackfillCookies.clear();
+                    mPostings.clear();
+                    mLivePostings = 0;
+                    mStalePostings = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the backfills in progress, such as when core restarts and the
+     * requests sent for them won't be answered. The chats are backfilled again
+     * when next searched.
+     */
+    public void resetBackfills() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageSearchIndex.this) {
+                    mBackfills.clear();
+                    mBackfillCookies.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Update the index from a chatMessage list message from core.
+     *
+     * @param type the type of the list message, such as listAdd or listChange
+     */
+    public void update(final String type, final JSONArray elements) {
+        if (elements == null || elements.length() == 0 || "listResync".equals(type)) {
+            return;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageSearchIndex.this) {
+                    for (int i = 0; i < elements.length(); ++i) {
+                        JSONObject element = elements.optJSONObject(i);
+                        if (element != null) {
+                            updateElement(type, element);
+                        }
+                    }
+                    rebuildIfStale();
+                }
+            }
+        });
+    }
+
+    /**
+     * Continue a backfill with the answer to one of its requests, which has a
+     * cookie starting with COOKIE_PREFIX. The chat messages in the answer must
+     * have been passed to update already.
+     *
+     * @param listName chat for the chat being backfilled, or chatMessage for a
+     *                 page of its messages
+     */
+    public void backfillResponse(final String listName, final String cookie, final JSONArray elements) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageSearchIndex.this) {
+                    Backfill backfill = mBackfillCookies.remove(cookie);
+                    if (backfill == null) {
+                        return;
+                    }
+
+                    if ("chat".equals(listName)) {
+                        JSONObject chat = elements != null ? elements.optJSONObject(0) : null;
+                        //a chat that doesn't exist has no messages to backfill
+                        backfill.next = chat != null ? parseMessageId(chat.optString("lastMessage", null)) : 0;
+                    }
+                    try {
+                        requestNextPage(backfill);
+                    } catch (JSONException je) {
+                        Log.e(TAG, "backfillResponse: failed to continue chatId=" + backfill.chatId, je);
+                        endBackfill(backfill, false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until what was queued for the background thread so far is done,
+     * used by tests and the benchmark.
+     */
+    void waitForPending() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        if (execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        })) {
+            latch.await();
+        }
+    }
+
+    /**
+     * Search the indexed messages.
+     *
+     * @param query the words to search for, all of them must be in a message for it to match
+     * @param chatId only search this chat, or null to search all chats
+     * @param offset the number of matches to skip, for paging
+     * @param limit the maximum number of matches to return
+     * @return an object with the total number of matches, and the requested page
+     * of matches each with chatId, messageId, score and snippet. When chatId is
+     * passed, complete is false while the chat is still being backfilled.
+     */
+    public synchronized JSONObject search(final String query, final String chatId, final int offset, final int limit) throws JSONException {
+        long startTime = System.nanoTime();
+        ArrayList<String> terms = new ArrayList<>(countTerms(query).keySet());
+        ArrayList<Match> matches = new ArrayList<>();
+
+        ArrayList<Postings> postings = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings termPostings = mPostings.get(term);
+            if (termPostings == null) {
+                postings.clear();
+                break;
+            }
+            postings.add(termPostings);
+        }
+
+        if (!postings.isEmpty()) {
+            //start from the shortest list, the candidates can only shrink from there
+            int shortest = 0;
+            for (int i = 1; i < postings.size(); ++i) {
+                if (postings.get(i).size < postings.get(shortest).size) {
+                    shortest = i;
+                }
+            }
+
+            //document number -> frequency of each term, the shortest term's first
+            HashMap<Integer, int[]> candidates = new HashMap<>();
+            int[] documentFrequencies = new int[postings.size()];
+            Postings first = postings.get(shortest);
+            for (int i = 0; i < first.size; ++i) {
+                Document document = mDocuments.get(first.entries[i] >>> FREQUENCY_BITS);
+                if (document != null) {
+                    ++documentFrequencies[shortest];
+                    if (chatId == null || chatId.equals(document.chatId)) {
+                        int[] frequencies = new int[postings.size()];
+                        frequencies[shortest] = first.entries[i] & MAX_FREQUENCY;
+                        candidates.put(document.number, frequencies);
+                    }
+                }
+            }
+
+            for (int t = 0; t < postings.size() && !candidates.isEmpty(); ++t) {
+                if (t == shortest) {
+                    continue;
+                }
+                Postings termPostings = postings.get(t);
+                for (int i = 0; i < termPostings.size; ++i) {
+                    int number = termPostings.entries[i] >>> FREQUENCY_BITS;
+                    if (mDocuments.get(number) != null) {
+                        ++documentFrequencies[t];
+                        int[] frequencies = candidates.get(number);
+                        if (frequencies != null) {
+                            frequencies[t] = termPostings.entries[i] & MAX_FREQUENCY;
+                        }
+                    }
+                }
+            }
+
+            int documentCount = mKeys.size();
+            for (Map.Entry<Integer, int[]> candidate : candidates.entrySet()) {
+                int[] frequencies = candidate.getValue();
+                double score = 0;
+                for (int t = 0; t < frequencies.length && score >= 0; ++t) {
+                    score = frequencies[t] == 0 ? -1
+                            : score + frequencies[t] * Math.log(1.0 + (double)documentCount / documentFrequencies[t]);
+                }
+                if (score >= 0) {
+                    matches.add(new Match(mDocuments.get(candidate.getKey()), score));
+                }
+            }
+        }
+
+        Collections.sort(matches, BY_SCORE);
+
+        JSONArray results = new JSONArray();
+        for (int i = Math.max(0, offset); i < matches.size() && results.length() < limit; ++i) {
+            Match match = matches.get(i);
+            JSONObject result = new JSONObject();
+            result.put("chatId", match.document.chatId);
+            result.put("messageId", match.document.messageId);
+            result.put("score", match.score);
+            result.put("snippet", makeSnippet(match.document.content, terms));
+            results.put(result);
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("total", matches.size());
+        response.put("results", results);
+        if (chatId != null) {
+            Chat chat = mChats.get(chatId);
+            response.put("complete", chat != null && chat.complete);
+            if (chat == null || !chat.complete) {
+                startBackfill(chatId);
+            }
+        }
+        Log.d(TAG, "search: terms=" + terms.size() + " matches=" + matches.size() + " indexed=" + mKeys.size()
+                + " took=" + (System.nanoTime() - startTime) / 1000 + "us");
+        return response;
+    }
+
+    public synchronized int size() {
+        return mKeys.size();
+    }
+
+    //must hold the lock
+    private void updateElement(final String type, final JSONObject element) {
+        String chatId = element.optString("chatId", null);
+        String messageId = element.optString("messageId", null);
+        if (chatId == null || messageId == null) {
+            return;
+        }
+
+        String key = chatId + '\u0000' + messageId;
+        if ("listRemove".equals(type) || element.optString("flags").indexOf('D') >= 0) {
+            //removed or deleted messages can no longer be found
+            remove(mKeys.get(key));
+        } else if (element.has("content")) {
+            //listChange only has content when the content changed
+            remove(mKeys.get(key));
+            add(key, chatId, messageId, element.optString("content"));
+        }
+    }
+
+    //must hold the lock
+    private void add(final String key, final String chatId, final String messageId, final String content) {
+        HashMap<String, Integer> counts = countTerms(content);
+        if (counts.isEmpty()) {
+            return;
+        }
+
+        //a message id that isn't a number can't be ordered, keep only the latest of those
+        long messageIdValue = Math.max(0, parseMessageId(messageId));
+        Chat chat = mChats.get(chatId);
+        remove(chat != null ? chat.messages.get(messageIdValue) : null);
+
+        chat = touchChat(chatId);
+
+        Document document = new Document(key, chatId, messageId, messageIdValue, content, counts.size());
+        document.number = mDocuments.size();
+        mDocuments.add(document);
+        mKeys.put(key, document);
+        chat.messages.put(messageIdValue, document);
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            Postings termPostings = mPostings.get(entry.getKey());
+            if (termPostings == null) {
+                termPostings = new Postings();
+                mPostings.put(entry.getKey(), termPostings);
+            }
+            termPostings.add(document.number, entry.getValue());
+        }
+        mLivePostings += counts.size();
+
+        while (mKeys.size() > MAX_DOCUMENTS) {
+            Map.Entry<String, Chat> eldest = mChats.entrySet().iterator().next();
+            if (eldest.getValue() != chat) {
+                //the least recently updated chat
+                removeChat(eldest.getKey(), eldest.getValue());
+            } else {
+                //this chat alone is over the limit, so it can't be complete
+                chat.complete = false;
+                remove(chat.messages.firstEntry().getValue());
+            }
+        }
+    }
+
+    /**
+     * Get a chat, added if needed, and make it the most recently updated.
+     * Must hold the lock.
+     */
+    private Chat touchChat(final String chatId) {
+        Chat chat = mChats.remove(chatId);
+        if (chat == null) {
+            chat = new Chat();
+        }
+        mChats.put(chatId, chat);
+        return chat;
+    }
+
+    //must hold the lock
+    private void removeChat(final String chatId, final Chat chat) {
+        Log.d(TAG, "removeChat: chatId=" + chatId + " messages=" + chat.messages.size());
+        //the chat isn't kept once it is empty
+        chat.complete = false;
+        Backfill backfill = mBackfills.get(chatId);
+        if (backfill != null) {
+            endBackfill(backfill, false);
+        }
+        for (Document document : chat.messages.values().toArray(new Document[0])) {
+            remove(document);
+        }
+        mChats.remove(chatId);
+    }
+
+    /**
+     * Start backfilling a chat unless it already is. Can be called with the
+     * lock held, the backfill is started on the background thread.
+     */
+    private void startBackfill(final String chatId) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageSearchIndex.this) {
+                    Chat chat = mChats.get(chatId);
+                    if (mBackfills.containsKey(chatId) || (chat != null && chat.complete)) {
+                        return;
+                    }
+
+                    Log.d(TAG, "startBackfill: chatId=" + chatId);
+                    touchChat(chatId);
+                    Backfill backfill = new Backfill(chatId);
+                    mBackfills.put(chatId, backfill);
+                    String cookie = COOKIE_PREFIX + UUID.randomUUID();
+                    mBackfillCookies.put(cookie, backfill);
+                    try {
+                        mSender.requestChat(chatId, cookie);
+                    } catch (JSONException je) {
+                        Log.e(TAG, "startBackfill: failed for chatId=" + chatId, je);
+                        endBackfill(backfill, false);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Request the next page of older messages of a chat being backfilled, or
+     * end the backfill once there are none left. Must hold the lock.
+     */
+    private void requestNextPage(final Backfill backfill) throws JSONException {
+        Chat chat = mChats.get(backfill.chatId);
+        if (chat == null || mBackfills.get(backfill.chatId) != backfill) {
+            return;
+        }
+        if (chat.messages.size() >= MAX_DOCUMENTS) {
+            Log.w(TAG, "requestNextPage: chatId=" + backfill.chatId + " is too large to index whole");
+            endBackfill(backfill, false);
+            return;
+        }
+
+        JSONArray elements = new JSONArray();
+        for (; backfill.next > 0 && elements.length() < BACKFILL_PAGE_SIZE; --backfill.next) {
+            if (!chat.messages.containsKey(backfill.next)) {
+                JSONObject element = new JSONObject();
+                element.put("chatId", backfill.chatId);
+                element.put("messageId", Long.toString(backfill.next));
+                elements.put(element);
+            }
+        }
+        if (elements.length() == 0) {
+            endBackfill(backfill, true);
+            return;
+        }
+
+        String cookie = COOKIE_PREFIX + UUID.randomUUID();
+        mBackfillCookies.put(cookie, backfill);
+        mSender.requestChatMessages(elements, cookie);
+    }
+
+    //must hold the lock
+    private void endBackfill(final Backfill backfill, final boolean complete) {
+        Log.d(TAG, "endBackfill: chatId=" + backfill.chatId + " complete=" + complete);
+        mBackfills.remove(backfill.chatId);
+        mBackfillCookies.values().remove(backfill);
+        Chat chat = mChats.get(backfill.chatId);
+        if (chat != null) {
+            chat.complete = complete;
+            if (chat.messages.isEmpty() && !complete) {
+                mChats.remove(backfill.chatId);
+            }
+        }
+    }
+
+    /**
+     * Queue work for the background thread.
+     *
+     * @return false if the index was closed and the work was dropped
+     */
+    private boolean execute(final Runnable runnable) {
+        if (mExecutor.isShutdown()) {
+            return false;
+        }
+        try {
+            mExecutor.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            //closed by another thread since the check
+            return false;
+        }
+    }
+
+    //must hold the lock
+    private void remove(final Document document) {
+        if (document == null) {
+            return;
+        }
+
+        mKeys.remove(document.key);
+        mDocuments.set(document.number, null);
+        mLivePostings -= document.termCount;
+        mStalePostings += document.termCount;
+
+        Chat chat = mChats.get(document.chatId);
+        if (chat != null && chat.messages.get(document.messageIdValue) == document) {
+            chat.messages.remove(document.messageIdValue);
+            if (chat.messages.isEmpty() && !chat.complete && !mBackfills.containsKey(document.chatId)) {
+                mChats.remove(document.chatId);
+            }
+        }
+    }
+
+    /**
+     * Drop the postings of removed messages and renumber the messages once
+     * more postings are stale than live. Must hold the lock.
+     */
+    private void rebuildIfStale() {
+        if (mStalePostings <= mLivePostings) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        //old document number -> new number, or -1 if removed
+        int[] numbers = new int[mDocuments.size()];
+        int next = 0;
+        for (int i = 0; i < mDocuments.size(); ++i) {
+            Document document = mDocuments.get(i);
+            numbers[i] = -1;
+            if (document != null) {
+                numbers[i] = next;
+                document.number = next;
+                mDocuments.set(next++, document);
+            }
+        }
+        mDocuments.subList(next, mDocuments.size()).clear();
+
+        for (Iterator<Postings> iter = mPostings.values().iterator(); iter.hasNext(); ) {
+            Postings termPostings = iter.next();
+            int size = 0;
+            for (int i = 0; i < termPostings.size; ++i) {
+                int entry = termPostings.entries[i];
+                int number = entry >>> FREQUENCY_BITS;
+                if (numbers[number] >= 0) {
+                    termPostings.entries[size++] = (numbers[number] << FREQUENCY_BITS) | (entry & MAX_FREQUENCY);
+                }
+            }
+            if (size == 0) {
+                iter.remove();
+            } else {
+                termPostings.size = size;
+            }
+        }
+        mStalePostings = 0;
+        Log.d(TAG, "rebuildIfStale: documents=" + mDocuments.size() + " terms=" + mPostings.size()
+                + " took=" + (System.nanoTime() - startTime) / 1000 + "us");
+    }
+
+    /**
+     * Split text into lower case words made of letters and digits, and count
+     * how often each occurs.
+     */
+    private static HashMap<String, Integer> countTerms(final String text) {
+        HashMap<String, Integer> counts = new LinkedHashMap<>();
+        if (text == null) {
+            return counts;
+        }
+
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); ++i) {
+            boolean wordChar = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = lowerCase.substring(start, i);
+                Integer count = counts.get(term);
+                counts.put(term, count != null ? count + 1 : 1);
+                start = -1;
+            }
+        }
+        return counts;
+    }
+
+    private static long parseMessageId(final String messageId) {
+        try {
+            return messageId != null ? Long.parseLong(messageId) : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static String makeSnippet(final String content, final ArrayList<String> terms) {
+        String lowerCase = content.toLowerCase(Locale.ROOT);
+        int match = -1;
+        for (String term : terms) {
+            match = lowerCase.indexOf(term);
+            if (match >= 0) {
+                break;
+            }
+        }
+
+        //lower casing can change the length of some text, so keep within the original
+        int start = Math.min(content.length(), Math.max(0, match - SNIPPET_CONTEXT));
+        int end = Math.min(content.length(), Math.max(match, 0) + SNIPPET_CONTEXT * 2);
+        return (start > 0 ? "…" : "") + content.substring(start, end) + (end < content.length() ? "…" : "");
+    }
+}
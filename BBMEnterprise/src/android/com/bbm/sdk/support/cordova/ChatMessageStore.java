@@ -0,0 +1,550 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the most recent chat messages seen in the chatMessage list traffic on
+ * disk, so a chat's history can be shown right away when it is opened, while
+ * the live subscription catches up.
+ *
+ * Messages are appended to a single log file as length prefixed JSON records.
+ * An in memory index maps each chatId and messageId to the offset of the
+ * latest record for that message. Records are written and read back through a
+ * memory mapping of the file, which is grown GROWTH_CHUNK at a time so it is
+ * not mapped again for every record. Only the newest MAX_MESSAGES_PER_CHAT
+ * messages of the MAX_CHATS most recently used chats are kept, and the file
+ * is rewritten with only those records once it is mostly stale.
+ *
+ * The messages are stored as plain JSON in files/spark/chatMessages.log in the
+ * app's private files directory. This is only used when the JS app opts in.
+ * The file is kept when the app exits so a chat's history can be shown on the
+ * next cold start. It is deleted when BBM Enterprise stops, such as on a wipe,
+ * sign out or fatal error, see clear, and when the JS app starts without
+ * opting in, see deleteFiles.
+ *
+ * All file access is done on one background thread shared by every store, so
+ * the file is closed by one store before the next one opens it, and a store
+ * can be closed from any thread without waiting.
+ */
+public class ChatMessageStore {
+    private static final String TAG = "ChatMessageStore";
+
+    private static final String FILE_NAME = "chatMessages.log";
+
+    private static final int MAX_MESSAGES_PER_CHAT = 200;
+    private static final int MAX_CHATS = 200;
+
+    //don't bother compacting a file smaller than this
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+    //written instead of a message when it is removed so it stays removed when the file is loaded again
+    private static final String REMOVED = "_removed";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //the mapping of the file is grown by this much at a time
+    private static final int GROWTH_CHUNK = 256 * 1024;
+
+    //never shut down, so work can always be queued on it
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File mFile;
+
+    //set once close was called, updates after that are ignored
+    private volatile boolean mClosed;
+
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    //a read write mapping of the file, which can be larger than the records in it
+    private MappedByteBuffer mMapped;
+
+    //offset after the last record in the file, -1 until the file is loaded
+    private long mEnd = -1;
+
+    //a failed compaction is not tried again until the file is this large
+    private long mNextCompactSize = MIN_COMPACT_SIZE;
+
+    //number of bytes in the file used by records still in the index
+    private long mLiveBytes;
+
+    //chatId -> messageId -> offset of the latest record, least recently used chat first
+    private final LinkedHashMap<String, TreeMap<Long, Long>> mIndex = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ChatMessageStore(final File directory) {
+        mFile = new File(directory, FILE_NAME);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    /**
+     * Close the file once the pending writes are done. Doesn't wait for that,
+     * a store opened afterwards only opens the file once this one closed it.
+     */
+    public void close() {
+        mClosed = true;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageStore.this) {
+                    closeFile();
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete every stored message, such as when the session ends. The store
+     * stays open with nothing in it.
+     */
+    public void clear() {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageStore.this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    closeFile();
+                    mIndex.clear();
+                    mLiveBytes = 0;
+                    deleteFilesNow(mFile.getParentFile());
+                    open();
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the files of a store in directory, such as one left from when
+     * the JS app had opted in. Done after any store that was closed before
+     * has closed the files.
+     */
+    public static void deleteFiles(final File directory) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteFilesNow(directory);
+            }
+        });
+    }
+
+    //must be called on the background thread
+    private static void deleteFilesNow(final File directory) {
+        for (File file : new File[] {new File(directory, FILE_NAME), new File(directory, FILE_NAME + ".tmp")}) {
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "deleteFiles: failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Update the store from a chatMessage list message from core.
+     *
+     * @param type the type of the list message, such as listAdd or listChange
+     */
+    public void update(final String type, final JSONArray elements) {
+        if (elements == null || elements.length() == 0 || "listResync".equals(type) || mClosed) {
+            return;
+        }
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChatMessageStore.this) {
+                    if (mChannel == null) {
+                        return;
+                    }
+                    try {
+                        for (int i = 0; i < elements.length(); ++i) {
+                            JSONObject element = elements.optJSONObject(i);
+                            if (element != null) {
+                                updateElement(type, element);
+                            }
+                        }
+                        compactIfNeeded();
+                    } catch (IOException | JSONException e) {
+                        Log.e(TAG, "update: failed for type=" + type, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until what was queued for the background thread so far is done,
+     * used by tests.
+     */
+    static void waitForPending() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * Get the newest messages of a chat from the store.
+     *
+     * @return up to count messages, oldest first
+     */
+    public synchronized JSONArray getRecent(final String chatId, final int count) throws IOException, JSONException {
+        JSONArray result = new JSONArray();
+        TreeMap<Long, Long> messages = mChannel != null ? mIndex.get(chatId) : null;
+        if (messages == null) {
+            return result;
+        }
+
+        ArrayList<Long> offsets = new ArrayList<>(Math.min(count, messages.size()));
+        for (Iterator<Long> iter = messages.descendingMap().values().iterator(); iter.hasNext() && offsets.size() < count; ) {
+            offsets.add(iter.next());
+        }
+        Collections.reverse(offsets);
+
+        for (long offset : offsets) {
+            result.put(new JSONObject(readRecord(offset)));
+        }
+        return result;
+    }
+
+    //must hold the lock
+    private void updateElement(final String type, final JSONObject element) throws IOException, JSONException {
+        String chatId = element.optString("chatId", null);
+        long messageId = parseMessageId(element.optString("messageId", null));
+        if (chatId == null || messageId < 0) {
+            return;
+        }
+
+        TreeMap<Long, Long> messages = mIndex.get(chatId);
+        Long oldOffset = messages != null ? messages.get(messageId) : null;
+
+        JSONObject record;
+        if ("listRemove".equals(type)) {
+            if (oldOffset == null) {
+                return;
+            }
+            record = new JSONObject();
+            record.put("chatId", chatId);
+            record.put("messageId", element.getString("messageId"));
+            record.put(REMOVED, true);
+        } else if ("listChange".equals(type)) {
+            //changes only carry what changed, so only update messages that were already stored
+            if (oldOffset == null) {
+                return;
+            }
+            record = new JSONObject(readRecord(oldOffset));
+            for (Iterator<String> iter = element.keys(); iter.hasNext(); ) {
+                String property = iter.next();
+                record.put(property, element.get(property));
+            }
+        } else {
+            record = element;
+        }
+
+        byte[] bytes = record.toString().getBytes(UTF8);
+        long offset = appendRecord(bytes);
+        applyRecord(chatId, messageId, record.optBoolean(REMOVED) ? -1 : offset, 4 + bytes.length);
+    }
+
+    /**
+     * Point the index at a record, or remove the message from it if offset is
+     * negative. Also drops the oldest messages and chats that are over the
+     * limits. Must hold the lock.
+     *
+     * @param size the size of the record including its length prefix, passed
+     *             in so a record that was just appended doesn't need the file
+     *             to be mapped again
+     */
+    private void applyRecord(final String chatId, final long messageId, final long offset, final int size) throws IOException {
+        TreeMap<Long, Long> messages = mIndex.get(chatId);
+        if (messages == null) {
+            if (offset < 0) {
+                return;
+            }
+            messages = new TreeMap<>();
+            mIndex.put(chatId, messages);
+        }
+
+        Long oldOffset = offset >= 0 ? messages.put(messageId, offset) : messages.remove(messageId);
+        if (oldOffset != null) {
+            mLiveBytes -= recordSize(oldOffset);
+        }
+        if (offset >= 0) {
+            mLiveBytes += size;
+        }
+
+        while (messages.size() > MAX_MESSAGES_PER_CHAT) {
+            mLiveBytes -= recordSize(messages.pollFirstEntry().getValue());
+        }
+        if (messages.isEmpty()) {
+            mIndex.remove(chatId);
+        }
+
+        while (mIndex.size() > MAX_CHATS) {
+            Iterator<Map.Entry<String, TreeMap<Long, Long>>> iter = mIndex.entrySet().iterator();
+            for (long eldestOffset : iter.next().getValue().values()) {
+                mLiveBytes -= recordSize(eldestOffset);
+            }
+            iter.remove();
+        }
+    }
+
+    //must be called on the background thread
+    private synchronized void open() {
+        mEnd = -1;
+        try {
+            mFile.getParentFile().mkdirs();
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mChannel = mRandomAccessFile.getChannel();
+            load();
+        } catch (IOException e) {
+            Log.e(TAG, "open: failed to open " + mFile, e);
+            closeFile();
+        }
+    }
+
+    /**
+     * Rebuild the index from the records in the file. Must hold the lock.
+     */
+    private void load() throws IOException {
+        long size = mChannel.size();
+        long offset = 0;
+        int records = 0;
+        //only what is in the file, the mapping is grown once loaded
+        mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        while (offset + 4 <= size) {
+            int length = mMapped.getInt((int)offset);
+            if (length <= 0 || offset + 4 + length > size) {
+                //the last write was cut short, drop it
+                break;
+            }
+
+            try {
+                JSONObject record = new JSONObject(readRecord(offset));
+                long messageId = parseMessageId(record.optString("messageId", null));
+                String chatId = record.optString("chatId", null);
+                if (chatId != null && messageId >= 0) {
+                    applyRecord(chatId, messageId, record.optBoolean(REMOVED) ? -1 : offset, 4 + length);
+                }
+            } catch (JSONException je) {
+                Log.w(TAG, "load: skipping bad record at offset=" + offset);
+            }
+            offset += 4 + length;
+            ++records;
+        }
+
+        if (offset < size) {
+            //drop what is left of a cut short write, or the unused end of the mapping if the app was killed
+            mMapped = null;
+            mChannel.truncate(offset);
+        }
+        mEnd = offset;
+        Log.d(TAG, "load: records=" + records + " chats=" + mIndex.size() + " size=" + offset + " live=" + mLiveBytes);
+    }
+
+    /**
+     * Rewrite the file with only the records in the index once most of it is
+     * stale. Must hold the lock.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (mEnd < mNextCompactSize || mEnd < mLiveBytes * 2) {
+            return;
+        }
+
+        Log.d(TAG, "compactIfNeeded: size=" + mEnd + " live=" + mLiveBytes);
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        //the new offsets are only used once the new file replaced the old one
+        ArrayList<long[]> newOffsets = new ArrayList<>(mIndex.size());
+        long newOffset = 0;
+        RandomAccessFile tempRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            FileChannel tempChannel = tempRandomAccessFile.getChannel();
+            tempChannel.truncate(0);
+            for (TreeMap<Long, Long> messages : mIndex.values()) {
+                long[] offsets = new long[messages.size()];
+                int i = 0;
+                for (long offset : messages.values()) {
+                    ByteBuffer record = recordBuffer(offset);
+                    int length = record.remaining();
+                    while (record.hasRemaining()) {
+                        tempChannel.write(record, newOffset + length - record.remaining());
+                    }
+                    offsets[i++] = newOffset;
+                    newOffset += length;
+                }
+                newOffsets.add(offsets);
+            }
+            tempChannel.force(false);
+        } finally {
+            tempRandomAccessFile.close();
+        }
+
+        closeFile();
+        if (!tempFile.renameTo(mFile)) {
+            //keep using the old file, and don't try again until it has grown a lot more
+            Log.e(TAG, "compactIfNeeded: failed to replace " + mFile);
+            if (!tempFile.delete()) {
+                Log.w(TAG, "compactIfNeeded: failed to delete " + tempFile);
+            }
+            mNextCompactSize = mEnd * 2;
+            openFile();
+            return;
+        }
+
+        Iterator<long[]> offsetsIter = newOffsets.iterator();
+        for (TreeMap<Long, Long> messages : mIndex.values()) {
+            long[] offsets = offsetsIter.next();
+            int i = 0;
+            for (Map.Entry<Long, Long> message : messages.entrySet()) {
+                message.setValue(offsets[i++]);
+            }
+        }
+        mNextCompactSize = MIN_COMPACT_SIZE;
+        openFile();
+        mEnd = newOffset;
+        Log.d(TAG, "compactIfNeeded: new size=" + mEnd);
+    }
+
+    //must hold the lock
+    private void openFile() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    //must hold the lock
+    private long appendRecord(final byte[] bytes) throws IOException {
+        long offset = mEnd;
+        ensureMapped(offset + 4 + bytes.length);
+        //the length goes in last so a record cut short by the app being killed reads as the end
+        ByteBuffer record = mMapped.duplicate();
+        record.position((int)offset + 4);
+        record.put(bytes);
+        mMapped.putInt((int)offset, bytes.length);
+        mEnd = offset + 4 + bytes.length;
+        return offset;
+    }
+
+    //must hold the lock
+    private String readRecord(final long offset) throws IOException {
+        ByteBuffer record = recordBuffer(offset);
+        record.position(record.position() + 4);
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return a view of the record at offset, including its length prefix.
+     */
+    private ByteBuffer recordBuffer(final long offset) throws IOException {
+        int size = recordSize(offset);
+        ByteBuffer record = mMapped.duplicate();
+        record.position((int)offset);
+        record.limit((int)offset + size);
+        return record;
+    }
+
+    //the size of the record at offset including its length prefix, must hold the lock
+    private int recordSize(final long offset) throws IOException {
+        ensureMapped(offset + 4);
+        int size = 4 + mMapped.getInt((int)offset);
+        ensureMapped(offset + size);
+        return size;
+    }
+
+    /**
+     * Map the file again, grown by GROWTH_CHUNK past end, if end is past the
+     * end of the current mapping. The old mapping is released once it is
+     * garbage collected. Must hold the lock.
+     */
+    private void ensureMapped(final long end) throws IOException {
+        if (mMapped == null || end > mMapped.capacity()) {
+            long size = (end / GROWTH_CHUNK + 1) * GROWTH_CHUNK;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map size=" + size);
+            }
+            mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    //must hold the lock
+    private void closeFile() {
+        mMapped = null;
+        if (mChannel != null && mEnd >= 0) {
+            try {
+                //drop the unused end of the mapping
+                mChannel.truncate(mEnd);
+            } catch (IOException e) {
+                Log.w(TAG, "closeFile: failed to truncate", e);
+            }
+        }
+        mChannel = null;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closeFile: failed", e);
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private static long parseMessageId(final String messageId) {
+        try {
+            return messageId != null ? Long.parseLong(messageId) : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
@@ -47,11 +47,33 @@ public class CordovaHelper {
   }
 
   public static void sendChangedEvent(String propertyName, Object param, String value) throws JSONException {
-    sendChangedEvent(propertyName, param, new PluginResult(PluginResult.Status.OK, toCordovaResponse(propertyName, param, value, false)));
+    sendTracedEvent(propertyName, param, value, false);
+  }
+
+  public static void sendChangedEvent(String propertyName, Object param, Number value) throws JSONException {
+    sendTracedEvent(propertyName, param, value, false);
   }
 
   public static void sendChangedEvent(String propertyName, Object param, JSONObject json, boolean merge) throws JSONException {
-    sendChangedEvent(propertyName, param, new PluginResult(PluginResult.Status.OK, toCordovaResponse(propertyName, param, json, merge)));
+    sendTracedEvent(propertyName, param, json, merge);
+  }
+
+  /**
+   * Send an event, stamping it for BridgeTracer if the message from core it
+   * came from is being traced.
+   */
+  private static void sendTracedEvent(String propertyName, Object param, Object value, boolean merge) throws JSONException {
+    BridgeTracer.Event event = BridgeTracer.onDequeue(propertyName);
+    JSONArray response = toCordovaResponse(propertyName, param, value, merge);
+    if (event != null) {
+      //the JS Monitor reports back when it got and handled this id
+      response.put(event.getId());
+    }
+    //the result serializes the response when created
+    PluginResult result = new PluginResult(PluginResult.Status.OK, response);
+    BridgeTracer.onSerialized(event);
+    sendChangedEvent(propertyName, param, result);
+    BridgeTracer.onSent(event);
   }
 
   public static void sendChangedEvent(String propertyName, Object param, PluginResult result) throws JSONException {
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Remembers the last value sent to the JS app for each observed list element,
+ * and each element of the lists observed as a whole, so a resync can forward
+ * only the elements that actually changed.
+ *
+ * The delivered objects are kept as is rather than copied, since nothing
+ * changes them once sent. A listChange is merged into a new object.
+ *
+ * Values are recorded and checked on the thread core delivers messages on,
+ * and removed on the main thread when the JS app stops observing, so every
+ * method is synchronized.
+ */
+public class DeliveredValueCache {
+    //marks an element that was removed, since null means nothing was delivered yet
+    private static final Object REMOVED = new Object();
+
+    //list name -> subscription key -> last delivered value
+    private final HashMap<String, HashMap<String, Object>> mValues = new HashMap<>();
+
+    //list observed as a whole -> element primary key -> element the JS app has
+    private final HashMap<String, LinkedHashMap<String, JSONObject>> mLists = new HashMap<>();
+
+    /**
+     * The elements that differ between what the JS app has for a list and
+     * a new listAll of it.
+     */
+    public static class ListDiff {
+        final JSONArray added = new JSONArray();
+        final JSONArray changed = new JSONArray();
+        final JSONArray removed = new JSONArray();
+
+        public boolean isEmpty() {
+            return added.length() == 0 && changed.length() == 0 && removed.length() == 0;
+        }
+    }
+
+    /**
+     * Record a value sent to the JS app.
+     *
+     * @param value the value sent, null if the element was removed
+     * @param merge true if the JS app merged the value into the last one
+     */
+    public synchronized void record(final String listName, final String key, final Object value, final boolean merge) throws JSONException {
+        HashMap<String, Object> values = mValues.get(listName);
+        if (values == null) {
+            values = new HashMap<>();
+            mValues.put(listName, values);
+        }
+
+        Object last = values.get(key);
+        if (merge && value instanceof JSONObject && last instanceof JSONObject) {
+            values.put(key, merge((JSONObject)last, (JSONObject)value));
+        } else {
+            values.put(key, value != null ? value : REMOVED);
+        }
+    }
+
+    /**
+     * Record a list message sent to the JS app for a list it observes as a
+     * whole. Lists without a known primary key are not recorded.
+     *
+     * @param type the type of the list message, such as listAll or listChange
+     */
+    public synchronized void recordList(final String type, final String listName, final JSONArray elements) throws JSONException {
+        LinkedHashMap<String, JSONObject> list = mLists.get(listName);
+        if ("listAll".equals(type)) {
+            list = new LinkedHashMap<>();
+            mLists.put(listName, list);
+        } else if (list == null || "listResync".equals(type)) {
+            return;
+        }
+
+        for (int i = 0; elements != null && i < elements.length(); ++i) {
+            JSONObject element = elements.optJSONObject(i);
+            String elementKey = OutboundQueue.getElementKey(listName, element);
+            if (elementKey == null) {
+                //can't tell the elements apart, so a resync has to forward the whole list
+                mLists.remove(listName);
+                return;
+            }
+
+            if ("listRemove".equals(type)) {
+                list.remove(elementKey);
+            } else if ("listChange".equals(type)) {
+                JSONObject last = list.get(elementKey);
+                list.put(elementKey, last != null ? merge(last, element) : element);
+            } else {
+                list.put(elementKey, element);
+            }
+        }
+    }
+
+    /**
+     * Compare a new listAll of a list observed as a whole with what the JS
+     * app has, and record the new list.
+     *
+     * @return the elements that differ, or null if the list wasn't recorded
+     * and the listAll must be forwarded as is.
+     */
+    public synchronized ListDiff diffList(final String listName, final JSONArray elements) throws JSONException {
+        LinkedHashMap<String, JSONObject> last = mLists.get(listName);
+        if (last == null) {
+            recordList("listAll", listName, elements);
+            return null;
+        }
+
+        ListDiff diff = new ListDiff();
+        LinkedHashMap<String, JSONObject> list = new LinkedHashMap<>();
+        for (int i = 0; elements != null && i < elements.length(); ++i) {
+            JSONObject element = elements.optJSONObject(i);
+            String elementKey = OutboundQueue.getElementKey(listName, element);
+            if (elementKey == null) {
+                mLists.remove(listName);
+                return null;
+            }
+            list.put(elementKey, element);
+
+            JSONObject lastElement = last.remove(elementKey);
+            if (lastElement == null) {
+                diff.added.put(element);
+            } else if (!jsonEquals(lastElement, element)) {
+                diff.changed.put(element);
+            }
+        }
+        for (JSONObject element : last.values()) {
+            diff.removed.put(element);
+        }
+        mLists.put(listName, list);
+        return diff;
+    }
+
+    public synchronized void removeList(final String listName) {
+        mLists.remove(listName);
+    }
+
+    /**
+     * @return true if the value differs from the last one sent to the JS app
+     * for this element, or nothing was sent yet.
+     */
+    public synchronized boolean hasChanged(final String listName, final String key, final Object value) {
+        HashMap<String, Object> values = mValues.get(listName);
+        Object last = values != null ? values.get(key) : null;
+        if (last == null) {
+            return true;
+        }
+        if (value == null) {
+            return last != REMOVED;
+        }
+        return last == REMOVED || !jsonEquals(last, value);
+    }
+
+    /**
+     * @return true if a value other than a removal was sent for this element.
+     */
+    public synchronized boolean hasValue(final String listName, final String key) {
+        HashMap<String, Object> values = mValues.get(listName);
+        Object last = values != null ? values.get(key) : null;
+        return last != null && last != REMOVED;
+    }
+
+    public synchronized void remove(final String listName, final String key) {
+        HashMap<String, Object> values = mValues.get(listName);
+        if (values != null) {
+            values.remove(key);
+            if (values.isEmpty()) {
+                mValues.remove(listName);
+            }
+        }
+    }
+
+    //the changes merged into a copy of last, which may be held elsewhere
+    private static JSONObject merge(final JSONObject last, final JSONObject changes) throws JSONException {
+        JSONObject merged = new JSONObject();
+        for (Iterator<String> iter = last.keys(); iter.hasNext(); ) {
+            String property = iter.next();
+            merged.put(property, last.get(property));
+        }
+        for (Iterator<String> iter = changes.keys(); iter.hasNext(); ) {
+            String property = iter.next();
+            merged.put(property, changes.get(property));
+        }
+        return merged;
+    }
+
+    /**
+     * Compare JSON values by content, ignoring the order of object keys.
+     */
+    private static boolean jsonEquals(final Object first, final Object second) {
+        if (first instanceof JSONObject && second instanceof JSONObject) {
+            JSONObject firstObject = (JSONObject)first;
+            JSONObject secondObject = (JSONObject)second;
+            if (firstObject.length() != secondObject.length()) {
+                return false;
+            }
+            for (Iterator<String> iter = firstObject.keys(); iter.hasNext(); ) {
+                String property = iter.next();
+                if (!secondObject.has(property) || !jsonEquals(firstObject.opt(property), secondObject.opt(property))) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (first instanceof JSONArray && second instanceof JSONArray) {
+            JSONArray firstArray = (JSONArray)first;
+            JSONArray secondArray = (JSONArray)second;
+            if (firstArray.length() != secondArray.length()) {
+                return false;
+            }
+            for (int i = 0; i < firstArray.length(); ++i) {
+                if (!jsonEquals(firstArray.opt(i), secondArray.opt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        //compare scalars as strings so 5 and "5" from different parses are equal
+        return String.valueOf(first).equals(String.valueOf(second));
+    }
+}
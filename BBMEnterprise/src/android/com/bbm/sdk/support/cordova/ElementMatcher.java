@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Matches the elements of a list message against the observed elements of
+ * that list.
+ *
+ * Small messages are matched on the calling thread. When the number of
+ * elements times the number of subscriptions reaches PARALLEL_THRESHOLD, such
+ * as a listChunk during the initial sync with many observed elements, the
+ * elements are split into one slice per worker and matched on a bounded pool,
+ * if the device has more than one core. The results
+ * are put back together so they are always in the same order as the serial
+ * path would produce: by element, then by subscription.
+ *
+ * A PayloadBuilder can be given to also build what is sent for each match on
+ * the workers, such as the serialized event, so only the sending is left to
+ * the calling thread. It is only used when matching in parallel, the payload
+ * of a match is null otherwise.
+ */
+public class ElementMatcher {
+    private static final String TAG = "ElementMatcher";
+
+    //elements times subscriptions, below this the cost of handing off to the pool outweighs the gain
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int WORKERS = Math.max(2, CORES - 1);
+
+    /**
+     * Builds what is sent for a match. Called on the workers for large
+     * messages, so it must not depend on the calling thread.
+     */
+    public interface PayloadBuilder {
+        Object build(SubscriptionRegistry.Subscription subscription, JSONObject object) throws JSONException;
+    }
+
+    /**
+     * An observed element that matched an element of a list message.
+     */
+    public static class Match {
+        final SubscriptionRegistry.Subscription subscription;
+        final JSONObject object;
+        //from the PayloadBuilder, null if none was given or the match was serial
+        final Object payload;
+
+        Match(final SubscriptionRegistry.Subscription subscription, final JSONObject object, final Object payload) {
+            this.subscription = subscription;
+            this.object = object;
+            this.payload = payload;
+        }
+    }
+
+    //1 to always match on the calling thread
+    private final int mWorkers;
+    private ExecutorService mExecutor;
+
+    public ElementMatcher() {
+        this(CORES < 2 ? 1 : WORKERS);
+    }
+
+    //lets tests and the benchmark use the pool whatever the number of cores
+    ElementMatcher(final int workers) {
+        mWorkers = workers;
+    }
+
+    public synchronized void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * @param subscriptions the observed elements of the list, from SubscriptionRegistry
+     * @return the matches in element order
+     */
+    public List<Match> match(final JSONArray elements, final SubscriptionRegistry.Subscription[] subscriptions) throws JSONException {
+        return match(elements, subscriptions, null);
+    }
+
+    /**
+     * @param subscriptions the observed elements of the list, from SubscriptionRegistry
+     * @param builder builds the payload of each match when matching in parallel, or null
+     * @return the matches in element order
+     */
+    public List<Match> match(final JSONArray elements, final SubscriptionRegistry.Subscription[] subscriptions,
+                             final PayloadBuilder builder) throws JSONException {
+        final int length = elements.length();
+        if (mWorkers < 2 || length < mWorkers || (long)length * subscriptions.length < PARALLEL_THRESHOLD) {
+            //nothing gained by building ahead on the calling thread
+            return match(elements, 0, length, subscriptions, null);
+        }
+
+        long startTime = System.nanoTime();
+        ArrayList<Future<List<Match>>> futures = new ArrayList<>(mWorkers);
+        ExecutorService executor = getExecutor();
+        int sliceSize = (length + mWorkers - 1) / mWorkers;
+        for (int start = 0; start < length; start += sliceSize) {
+            final int sliceStart = start;
+            final int sliceEnd = Math.min(length, start + sliceSize);
+            futures.add(executor.submit(new Callable<List<Match>>() {
+                @Override
+                public List<Match> call() throws JSONException {
+                    return match(elements, sliceStart, sliceEnd, subscriptions, builder);
+                }
+            }));
+        }
+
+        //the futures are in slice order so this keeps the element order
+        ArrayList<Match> matches = new ArrayList<>();
+        try {
+            for (Future<List<Match>> future : futures) {
+                matches.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSONException("Interrupted while matching elements");
+        } catch (ExecutionException e) {
+            throw new JSONException("Failed to match elements: " + e.getCause());
+        }
+
+        Log.d(TAG, "match: elements=" + length + " subscriptions=" + subscriptions.length + " slices=" + futures.size()
+                + " matches=" + matches.size() + " payloads=" + (builder != null) + " took=" + (System.nanoTime() - startTime) / 1000 + "us");
+        return matches;
+    }
+
+    private static List<Match> match(final JSONArray elements, final int start, final int end,
+                                     final SubscriptionRegistry.Subscription[] subscriptions,
+                                     final PayloadBuilder builder) throws JSONException {
+        ArrayList<Match> matches = new ArrayList<>();
+        for (int i = start; i < end; ++i) {
+            JSONObject object = elements.getJSONObject(i);
+            for (SubscriptionRegistry.Subscription subscription : subscriptions) {
+                if (subscription.matches(object)) {
+                    matches.add(new Match(subscription, object, builder != null ? builder.build(subscription, object) : null));
+                }
+            }
+        }
+        return matches;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(mWorkers);
+        }
+        return mExecutor;
+    }
+}
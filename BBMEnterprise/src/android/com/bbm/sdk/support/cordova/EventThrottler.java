@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Limits how often changes to an observed element are sent to the JS app.
+ *
+ * The JS app can set a maximum rate when it observes an element. The rate only
+ * applies to that element, and is forgotten when the element is no longer
+ * observed. The first change is sent right away, changes that arrive too soon after are
+ * coalesced and the last one is sent once the interval has passed, so the
+ * final value always reaches the JS app.
+ *
+ * A rate set for a list observed as a whole applies to each element of the
+ * list on its own. The listChange elements held for an element are merged,
+ * and those due together are sent as one listChange. Any other list message
+ * is sent right away and drops what was held for its elements, since it
+ * already carries their latest values.
+ */
+public class EventThrottler {
+    private static final String TAG = "EventThrottler";
+
+    /**
+     * Used to send an event to the JS app once it is allowed through.
+     */
+    public interface Sender {
+        void send(String listName, JSONObject properties, Object value, boolean merge) throws JSONException;
+    }
+
+    private static class Slot {
+        final String listName;
+        //minimum time between events in milliseconds
+        long interval;
+        long lastSentTime;
+        boolean scheduled;
+
+        //the coalesced event waiting to be sent, pendingProperties is null when nothing is waiting
+        JSONObject pendingProperties;
+        Object pendingValue;
+        boolean pendingMerge;
+
+        Slot(final String listName) {
+            this.listName = listName;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+
+    private static class ListSlot {
+        //minimum time between changes to an element in milliseconds
+        long interval;
+        boolean scheduled;
+
+        //element primary key -> when a change to it was last sent
+        final HashMap<String, Long> lastSentTimes = new HashMap<>();
+        //element primary key -> the merged changes waiting to be sent
+        final LinkedHashMap<String, JSONObject> pending = new LinkedHashMap<>();
+    }
+
+    //past this many elements, the send times that no longer hold anything back are forgotten
+    private static final int MAX_SEND_TIMES = 256;
+
+    //list name + subscription key -> throttling state for each element with a rate
+    private final HashMap<String, Slot> mSlots = new HashMap<>();
+
+    //list name -> throttling state for each list observed as a whole with a rate
+    private final HashMap<String, ListSlot> mListSlots = new HashMap<>();
+
+    public EventThrottler(final Handler handler, final Sender sender) {
+        mHandler = handler;
+        mSender = sender;
+    }
+
+    /**
+     * Set the maximum number of events per second sent for an observed
+     * element. A rate of 0 or less removes the limit.
+     */
+    public synchronized void setMaxRate(final String listName, final String key, final double maxRate) {
+        Log.d(TAG, "setMaxRate: listName=" + listName + " key=" + key + " maxRate=" + maxRate);
+        final String slotKey = listName + '\u0000' + key;
+        Slot slot = mSlots.get(slotKey);
+        if (maxRate > 0) {
+            if (slot == null) {
+                slot = new Slot(listName);
+                mSlots.put(slotKey, slot);
+            }
+            slot.interval = Math.max(1L, (long)(1000 / maxRate));
+        } else if (slot != null) {
+            //an event already being held is still sent when its time comes
+            slot.interval = 0;
+            if (slot.pendingProperties == null) {
+                mSlots.remove(slotKey);
+            }
+        }
+    }
+
+    /**
+     * Check if events for an element have a rate, so they must go through
+     * send rather than straight to the JS app.
+     */
+    public synchronized boolean isThrottled(final String listName, final String key) {
+        return mSlots.containsKey(listName + '\u0000' + key);
+    }
+
+    /**
+     * Send the event now, or hold it if the element was sent too recently.
+     */
+    public void send(final String listName, final String key, final JSONObject properties, final Object value, final boolean merge) throws JSONException {
+        final String slotKey = listName + '\u0000' + key;
+        synchronized (this) {
+            Slot slot = mSlots.get(slotKey);
+            if (slot != null) {
+                long now = SystemClock.uptimeMillis();
+                if (slot.pendingProperties != null || now - slot.lastSentTime < slot.interval) {
+                    hold(slot, properties, value, merge);
+                    if (!slot.scheduled) {
+                        slot.scheduled = true;
+                        mHandler.postAtTime(BridgeTracer.wrap(new Runnable() {
+                            @Override
+                            public void run() {
+                                flush(slotKey);
+                            }
+                        }), slot.lastSentTime + slot.interval);
+                    }
+                    return;
+                }
+                slot.lastSentTime = now;
+            }
+        }
+
+        mSender.send(listName, properties, value, merge);
+    }
+
+    /**
+     * Forget the rate and any state for an element that is no longer
+     * observed. An event being held for it is dropped.
+     */
+    public synchronized void remove(final String listName, final String key) {
+        mSlots.remove(listName + '\u0000' + key);
+    }
+
+    /**
+     * Set the maximum number of changes per second sent for each element of
+     * a list observed as a whole. A rate of 0 or less removes the limit, and
+     * the changes being held are sent.
+     */
+    public void setListMaxRate(final String listName, final double maxRate) {
+        Log.d(TAG, "setListMaxRate: listName=" + listName + " maxRate=" + maxRate);
+        synchronized (this) {
+            ListSlot slot = mListSlots.get(listName);
+            if (maxRate > 0) {
+                if (slot == null) {
+                    slot = new ListSlot();
+                    mListSlots.put(listName, slot);
+                }
+                slot.interval = Math.max(1L, (long)(1000 / maxRate));
+                return;
+            } else if (slot == null) {
+                return;
+            }
+            slot.interval = 0;
+        }
+        flushList(listName);
+    }
+
+    /**
+     * Forget the rate and any state for a list that is no longer observed.
+     * The changes being held for it are dropped.
+     */
+    public synchronized void removeList(final String listName) {
+        mListSlots.remove(listName);
+    }
+
+    /**
+     * Send a list message for a list observed as a whole now, or hold the
+     * listChange elements that were sent too recently.
+     *
+     * @param type the type of the list message, such as listAll or listChange
+     * @param message the list message as sent to the JS app
+     */
+    public void sendList(final String listName, final String type, final JSONArray elements, final JSONObject message) throws JSONException {
+        //sent while holding the lock so a held change can't pass a later message for its element
+        synchronized (this) {
+            ListSlot slot = mListSlots.get(listName);
+            if (slot != null && elements != null) {
+                if ("listChange".equals(type)) {
+                    JSONArray allowed = holdChanges(listName, slot, elements);
+                    if (allowed != elements && allowed.length() > 0) {
+                        mSender.send(listName, null, listMessage(type, listName, allowed), false);
+                    }
+                    if (allowed != elements) {
+                        return;
+                    }
+                } else if ("listAll".equals(type)) {
+                    slot.pending.clear();
+                    slot.lastSentTimes.clear();
+                } else {
+                    for (int i = 0; i < elements.length(); ++i) {
+                        String elementKey = OutboundQueue.getElementKey(listName, elements.optJSONObject(i));
+                        if (elementKey != null) {
+                            slot.pending.remove(elementKey);
+                        }
+                    }
+                }
+            }
+
+            mSender.send(listName, null, message, false);
+        }
+    }
+
+    //must hold the lock, returns elements itself when nothing was held back
+    private JSONArray holdChanges(final String listName, final ListSlot slot, final JSONArray elements) throws JSONException {
+        long now = SystemClock.uptimeMillis();
+        JSONArray allowed = new JSONArray();
+        long nextTime = Long.MAX_VALUE;
+        for (int i = 0; i < elements.length(); ++i) {
+            JSONObject element = elements.optJSONObject(i);
+            String elementKey = OutboundQueue.getElementKey(listName, element);
+            if (elementKey == null) {
+                allowed.put(elements.get(i));
+                continue;
+            }
+
+            JSONObject pending = slot.pending.get(elementKey);
+            Long lastSentTime = slot.lastSentTimes.get(elementKey);
+            if (pending != null) {
+                merge(pending, element);
+            } else if (lastSentTime != null && now - lastSentTime < slot.interval) {
+                slot.pending.put(elementKey, merge(new JSONObject(), element));
+                nextTime = Math.min(nextTime, lastSentTime + slot.interval);
+            } else {
+                slot.lastSentTimes.put(elementKey, now);
+                allowed.put(element);
+            }
+        }
+
+        if (slot.lastSentTimes.size() > MAX_SEND_TIMES) {
+            forgetSendTimes(slot, now);
+        }
+        if (nextTime != Long.MAX_VALUE && !slot.scheduled) {
+            scheduleList(listName, slot, nextTime);
+        }
+        return allowed.length() == elements.length() ? elements : allowed;
+    }
+
+    //must hold the lock
+    private void scheduleList(final String listName, final ListSlot slot, final long time) {
+        slot.scheduled = true;
+        mHandler.postAtTime(BridgeTracer.wrap(new Runnable() {
+            @Override
+            public void run() {
+                flushList(listName);
+            }
+        }), time);
+    }
+
+    //send the held changes that are due, and wait for the rest
+    private void flushList(final String listName) {
+        synchronized (this) {
+            ListSlot slot = mListSlots.get(listName);
+            if (slot == null) {
+                return;
+            }
+            slot.scheduled = false;
+
+            long now = SystemClock.uptimeMillis();
+            JSONArray due = new JSONArray();
+            long nextTime = Long.MAX_VALUE;
+            for (Iterator<Map.Entry<String, JSONObject>> iter = slot.pending.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry<String, JSONObject> entry = iter.next();
+                Long lastSentTime = slot.lastSentTimes.get(entry.getKey());
+                long time = lastSentTime != null ? lastSentTime + slot.interval : now;
+                if (time <= now) {
+                    due.put(entry.getValue());
+                    slot.lastSentTimes.put(entry.getKey(), now);
+                    iter.remove();
+                } else {
+                    nextTime = Math.min(nextTime, time);
+                }
+            }
+
+            if (nextTime != Long.MAX_VALUE) {
+                scheduleList(listName, slot, nextTime);
+            } else if (slot.interval == 0) {
+                //the rate was removed, everything held was just sent
+                mListSlots.remove(listName);
+            }
+
+            if (due.length() > 0) {
+                try {
+                    mSender.send(listName, null, listMessage("listChange", listName, due), false);
+                } catch (JSONException je) {
+                    Log.e(TAG, "flushList: failed to send event for listName=" + listName, je);
+                }
+            }
+        }
+    }
+
+    //must hold the lock
+    private static void forgetSendTimes(final ListSlot slot, final long now) {
+        for (Iterator<Map.Entry<String, Long>> iter = slot.lastSentTimes.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (now - entry.getValue() >= slot.interval && !slot.pending.containsKey(entry.getKey())) {
+                iter.remove();
+            }
+        }
+    }
+
+    //the same form core sends list messages in
+    private static JSONObject listMessage(final String type, final String listName, final JSONArray elements) throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("type", listName);
+        data.put("elements", elements);
+        return new JSONObject().put(type, data);
+    }
+
+    private static JSONObject merge(final JSONObject target, final JSONObject changes) throws JSONException {
+        for (Iterator<String> iter = changes.keys(); iter.hasNext(); ) {
+            String property = iter.next();
+            target.put(property, changes.get(property));
+        }
+        return target;
+    }
+
+    //must hold the lock
+    private void hold(final Slot slot, final JSONObject properties, final Object value, final boolean merge) throws JSONException {
+        if (slot.pendingProperties != null && merge && slot.pendingValue instanceof JSONObject && value instanceof JSONObject) {
+            //merge this change into the held one, the held event keeps its merge flag
+            merge((JSONObject)slot.pendingValue, (JSONObject)value);
+        } else {
+            //held in a copy since changes are merged into it
+            slot.pendingValue = value instanceof JSONObject ? merge(new JSONObject(), (JSONObject)value) : value;
+            slot.pendingMerge = merge;
+        }
+        slot.pendingProperties = properties;
+    }
+
+    private void flush(final String slotKey) {
+        final Slot slot;
+        final JSONObject properties;
+        final Object value;
+        final boolean merge;
+        synchronized (this) {
+            slot = mSlots.get(slotKey);
+            if (slot == null || slot.pendingProperties == null) {
+                return;
+            }
+            properties = slot.pendingProperties;
+            value = slot.pendingValue;
+            merge = slot.pendingMerge;
+            slot.pendingProperties = null;
+            slot.pendingValue = null;
+            slot.scheduled = false;
+            slot.lastSentTime = SystemClock.uptimeMillis();
+            if (slot.interval == 0) {
+                //the rate was removed while this event was held
+                mSlots.remove(slotKey);
+            }
+        }
+
+        try {
+            mSender.send(slot.listName, properties, value, merge);
+        } catch (JSONException je) {
+            Log.e(TAG, "flush: failed to send event for listName=" + slot.listName, je);
+        }
+    }
+}
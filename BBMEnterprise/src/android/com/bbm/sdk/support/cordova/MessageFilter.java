@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decides if a message from core is relevant to anything observed before any
+ * work is done on it.
+ *
+ * The observed list names and message types are kept as immutable sets that
+ * are replaced whenever the JS app starts or stops observing something, so
+ * checking a message needs no locking. Answers to requests the plugin sent
+ * for itself are recognized by the prefix of their cookie, and are always
+ * accepted. Counts of the messages that were accepted and skipped are kept
+ * for getStats.
+ */
+public class MessageFilter {
+    private volatile Set<String> mLists = Collections.emptySet();
+    private volatile Set<String> mMessages = Collections.emptySet();
+    private final String[] mCookiePrefixes;
+
+    private final AtomicLong mAccepted = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+
+    /**
+     * @param cookiePrefixes the prefixes of the cookies of the requests the
+     *                       plugin sends for itself
+     */
+    public MessageFilter(final String... cookiePrefixes) {
+        mCookiePrefixes = cookiePrefixes;
+    }
+
+    /**
+     * Replace the names of the lists that have observed elements, are
+     * observed as a whole, or are used by the plugin itself.
+     */
+    public void setLists(final Collection<String> lists) {
+        mLists = Collections.unmodifiableSet(new HashSet<>(lists));
+    }
+
+    /**
+     * Replace the types of the individual messages that are observed.
+     */
+    public void setMessages(final Collection<String> messages) {
+        mMessages = Collections.unmodifiableSet(new HashSet<>(messages));
+    }
+
+    /**
+     * @param cookie the cookie of a listElements, or null
+     */
+    public boolean acceptList(final String listName, final String cookie) {
+        if (cookie != null) {
+            for (String prefix : mCookiePrefixes) {
+                if (cookie.startsWith(prefix)) {
+                    return count(true);
+                }
+            }
+        }
+        return count(listName != null && mLists.contains(listName));
+    }
+
+    public boolean acceptMessage(final String type) {
+        return count(mMessages.contains(type));
+    }
+
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("accepted", mAccepted.get());
+        stats.put("skipped", mSkipped.get());
+        return stats;
+    }
+
+    private boolean count(final boolean accept) {
+        (accept ? mAccepted : mSkipped).incrementAndGet();
+        return accept;
+    }
+}
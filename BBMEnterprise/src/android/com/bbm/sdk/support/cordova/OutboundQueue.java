@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Holds non-urgent outbound messages while core is not connected to the
+ * BlackBerry Infrastructure.
+ *
+ * Read markers ('chatMessageRead') and list changes ('requestListChange') are
+ * coalesced while offline, so only the latest value for each chat or list
+ * element is kept. Everything held is flushed in one batch when the connection
+ * comes back. All other messages are never held and must be sent immediately
+ * by the caller. A list add or remove passing through first sends or drops
+ * the changes held for the same elements, so core sees them in order.
+ *
+ * Nothing is held until core reports it is offline, so a plugin instance that
+ * never gets a connection state sends everything right away.
+ */
+public class OutboundQueue {
+    private static final String TAG = "OutboundQueue";
+
+    /**
+     * The primary keys of the lists whose changes can be coalesced. This
+     * mirrors getPrimaryKey() in Lists.js.
+     */
+    private static final HashMap<String, String[]> PRIMARY_KEYS = new HashMap<>();
+    static {
+        PRIMARY_KEYS.put("appMessage", new String[] {"id"});
+        PRIMARY_KEYS.put("chatMessage", new String[] {"chatId", "messageId"});
+        PRIMARY_KEYS.put("typing", new String[] {"userUri", "chatId"});
+        PRIMARY_KEYS.put("chat", new String[] {"chatId"});
+        PRIMARY_KEYS.put("stat", new String[] {"name"});
+        PRIMARY_KEYS.put("chatMessageFileProgress", new String[] {"chatId", "messageId"});
+        PRIMARY_KEYS.put("chatParticipant", new String[] {"chatId", "userUri"});
+        PRIMARY_KEYS.put("user", new String[] {"uri"});
+        PRIMARY_KEYS.put("global", new String[] {"name"});
+    }
+
+    /**
+     * Used to send the held messages when the connection comes back.
+     */
+    public interface Sender {
+        void sendInvoke(JSONObject object) throws JSONException;
+        void sendMutate(String action, String type, JSONArray elements) throws JSONException;
+    }
+
+    private final Sender mSender;
+
+    //null until core reports the first status change, messages are only held once it is false
+    private Boolean mOnline;
+
+    //chatId -> latest chatMessageRead parameters for that chat
+    private final LinkedHashMap<String, JSONObject> mPendingReads = new LinkedHashMap<>();
+
+    //list type -> element primary key -> merged element to change
+    private final LinkedHashMap<String, LinkedHashMap<String, JSONObject>> mPendingChanges = new LinkedHashMap<>();
+
+    public OutboundQueue(final Sender sender) {
+        mSender = sender;
+    }
+
+    /**
+     * @return true once core has reported it is connected.
+     */
+    public synchronized boolean isOnline() {
+        return mOnline != null && mOnline;
+    }
+
+    /**
+     * @return true once core has reported its connection state.
+     */
+    public synchronized boolean isStateKnown() {
+        return mOnline != null;
+    }
+
+    //must hold the lock
+    private boolean isOffline() {
+        return Boolean.FALSE.equals(mOnline);
+    }
+
+    /**
+     * Update the connection state. When going from offline to online all held
+     * messages are flushed.
+     *
+     * @return true if the state changed.
+     */
+    public boolean setOnline(final boolean online) {
+        synchronized (this) {
+            if (mOnline != null && mOnline == online) {
+                return false;
+            }
+            mOnline = online;
+        }
+
+        Log.d(TAG, "setOnline: online=" + online);
+        if (online) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Hold a message passed to invoke if it can be coalesced and we are offline.
+     *
+     * @return true if the message was held, false if the caller must send it.
+     */
+    public synchronized boolean offerInvoke(final JSONObject object) {
+        if (!isOffline()) {
+            return false;
+        }
+
+        JSONObject params = object.optJSONObject("chatMessageRead");
+        if (params == null) {
+            return false;
+        }
+
+        String chatId = params.optString("chatId", null);
+        if (chatId == null) {
+            return false;
+        }
+
+        //chatMessageRead marks everything up to messageId as read so only the highest one matters
+        JSONObject pending = mPendingReads.get(chatId);
+        if (pending == null || compareMessageIds(params.optString("messageId"), pending.optString("messageId")) > 0) {
+            mPendingReads.put(chatId, params);
+        }
+        Log.d(TAG, "offerInvoke: holding chatMessageRead for chatId=" + chatId + " pendingReads=" + mPendingReads.size());
+        return true;
+    }
+
+    /**
+     * Hold a list mutation if it can be coalesced and we are offline. Any
+     * other mutation of elements with held changes first sends those changes
+     * if it is an add, or drops them if it is a remove.
+     *
+     * @return true if the mutation was held, false if the caller must send it.
+     */
+    public synchronized boolean offerMutate(final String action, final String type, final JSONArray elements) throws JSONException {
+        String[] primaryKey = PRIMARY_KEYS.get(type);
+        if (primaryKey == null) {
+            return false;
+        }
+
+        if (!"requestListChange".equals(action)) {
+            releaseChanges(action, type, primaryKey, elements);
+            return false;
+        }
+        if (!isOffline()) {
+            return false;
+        }
+
+        //make sure every element can be identified before holding any of them
+        for (int i = 0; i < elements.length(); ++i) {
+            if (makeElementKey(primaryKey, elements.optJSONObject(i)) == null) {
+                return false;
+            }
+        }
+
+        LinkedHashMap<String, JSONObject> pendingForType = mPendingChanges.get(type);
+        if (pendingForType == null) {
+            pendingForType = new LinkedHashMap<>();
+            mPendingChanges.put(type, pendingForType);
+        }
+
+        for (int i = 0; i < elements.length(); ++i) {
+            JSONObject element = elements.getJSONObject(i);
+            String elementKey = makeElementKey(primaryKey, element);
+            JSONObject pending = pendingForType.get(elementKey);
+            if (pending == null) {
+                pendingForType.put(elementKey, new JSONObject(element.toString()));
+            } else {
+                //later changes to the same element win
+                for (Iterator<String> iter = element.keys(); iter.hasNext(); ) {
+                    String property = iter.next();
+                    pending.put(property, element.get(property));
+                }
+            }
+        }
+        Log.d(TAG, "offerMutate: holding " + elements.length() + " changes for type=" + type + " pending=" + pendingForType.size());
+        return true;
+    }
+
+    /**
+     * Send or drop the held changes to the elements of another mutation, must
+     * hold the lock.
+     */
+    private void releaseChanges(final String action, final String type, final String[] primaryKey, final JSONArray elements) throws JSONException {
+        LinkedHashMap<String, JSONObject> pendingForType = mPendingChanges.get(type);
+        if (pendingForType == null) {
+            return;
+        }
+
+        JSONArray changes = new JSONArray();
+        for (int i = 0; i < elements.length(); ++i) {
+            String elementKey = makeElementKey(primaryKey, elements.optJSONObject(i));
+            JSONObject pending = elementKey != null ? pendingForType.remove(elementKey) : null;
+            if (pending != null) {
+                changes.put(pending);
+            }
+        }
+        if (pendingForType.isEmpty()) {
+            mPendingChanges.remove(type);
+        }
+
+        if (changes.length() > 0) {
+            if ("requestListRemove".equals(action)) {
+                Log.d(TAG, "releaseChanges: dropping " + changes.length() + " changes for type=" + type + " removed elements");
+            } else {
+                Log.d(TAG, "releaseChanges: sending " + changes.length() + " changes for type=" + type + " before " + action);
+                mSender.sendMutate("requestListChange", type, changes);
+            }
+        }
+    }
+
+    /**
+     * Drop everything held, such as when the session ends and it must not be
+     * sent for the next user.
+     */
+    public synchronized void clear() {
+        Log.d(TAG, "clear: reads=" + mPendingReads.size() + " change types=" + mPendingChanges.size());
+        mPendingReads.clear();
+        mPendingChanges.clear();
+    }
+
+    /**
+     * Send everything that was held while offline. Core queues them itself
+     * until it is connected.
+     */
+    public void flush() {
+        final LinkedHashMap<String, JSONObject> reads;
+        final LinkedHashMap<String, LinkedHashMap<String, JSONObject>> changes;
+        synchronized (this) {
+            reads = new LinkedHashMap<>(mPendingReads);
+            changes = new LinkedHashMap<>(mPendingChanges);
+            mPendingReads.clear();
+            mPendingChanges.clear();
+        }
+
+        Log.d(TAG, "flush: reads=" + reads.size() + " change types=" + changes.size());
+
+        for (Map.Entry<String, LinkedHashMap<String, JSONObject>> entry : changes.entrySet()) {
+            try {
+                JSONArray elements = new JSONArray();
+                for (JSONObject element : entry.getValue().values()) {
+                    elements.put(element);
+                }
+                mSender.sendMutate("requestListChange", entry.getKey(), elements);
+            } catch (JSONException je) {
+                Log.e(TAG, "flush: failed to send changes for type=" + entry.getKey(), je);
+            }
+        }
+
+        for (JSONObject params : reads.values()) {
+            try {
+                JSONObject object = new JSONObject();
+                object.put("chatMessageRead", params);
+                mSender.sendInvoke(object);
+            } catch (JSONException je) {
+                Log.e(TAG, "flush: failed to send chatMessageRead=" + params, je);
+            }
+        }
+    }
+
+    /**
+     * @return the primary key of an element of a list as a string, or null if
+     * the list has no known primary key or the element is missing part of it.
+     */
+    static String getElementKey(final String type, final JSONObject element) {
+        String[] primaryKey = PRIMARY_KEYS.get(type);
+        return primaryKey != null ? makeElementKey(primaryKey, element) : null;
+    }
+
+    private static String makeElementKey(final String[] primaryKey, final JSONObject element) {
+        if (element == null) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String property : primaryKey) {
+            if (!element.has(property)) {
+                return null;
+            }
+            builder.append(element.opt(property)).append('\u0000');
+        }
+        return builder.toString();
+    }
+
+    private static int compareMessageIds(final String first, final String second) {
+        try {
+            return Long.compare(Long.parseLong(first), Long.parseLong(second));
+        } catch (NumberFormatException nfe) {
+            return first.compareTo(second);
+        }
+    }
+}
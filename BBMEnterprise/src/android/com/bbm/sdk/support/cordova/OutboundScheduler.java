@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.os.SystemClock;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Orders the messages sent to core by priority, so a message the user just
+ * sent doesn't wait behind the bulk list requests made at startup.
+ *
+ * Messages are sent from a single background thread. Each pass picks from the
+ * classes in a weighted round robin (USER 4, VISIBLE 2, BACKGROUND 1), so
+ * lower classes still make progress under load. At most MAX_BULK_IN_FLIGHT
+ * BACKGROUND requests are waiting for their answer from core at a time. A
+ * request stops counting once its answer arrives, see onListMessage, or after
+ * BULK_TIMEOUT_MS.
+ */
+public class OutboundScheduler {
+    private static final String TAG = "OutboundScheduler";
+
+    public enum Priority {
+        //messages the user asked to send, such as invoke and list changes
+        USER(4),
+        //requests for the elements and lists the JS app just started observing
+        VISIBLE(2),
+        //bulk requests to resync everything already observed, and prefetches the JS app did not ask for,
+        //such as the chats and messages loaded for the aggregates and the search index
+        BACKGROUND(1);
+
+        final int weight;
+
+        Priority(final int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final int MAX_BULK_IN_FLIGHT = 4;
+    private static final long BULK_TIMEOUT_MS = 15000;
+
+    private static class Entry {
+        final String inFlightKey;
+        final Runnable send;
+        final long enqueueTime = SystemClock.elapsedRealtime();
+
+        Entry(final String inFlightKey, final Runnable send) {
+            this.inFlightKey = inFlightKey;
+            this.send = send;
+        }
+    }
+
+    private static class ClassStats {
+        long sent;
+        long totalWait;
+        long maxWait;
+    }
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final ArrayDeque<Entry>[] mQueues;
+    private final ClassStats[] mStats;
+    private final int[] mCredits;
+    private boolean mDrainScheduled;
+    private boolean mWakeUpScheduled;
+
+    //in flight key of each BACKGROUND request sent -> when it was sent
+    private final HashMap<String, Long> mBulkInFlight = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public OutboundScheduler() {
+        Priority[] priorities = Priority.values();
+        mQueues = new ArrayDeque[priorities.length];
+        mStats = new ClassStats[priorities.length];
+        mCredits = new int[priorities.length];
+        for (int i = 0; i < priorities.length; ++i) {
+            mQueues[i] = new ArrayDeque<>();
+            mStats[i] = new ClassStats();
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Wait until the messages that can be sent so far were sent, used by
+     * tests.
+     */
+    void waitForPending() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * Queue a message to be sent to core.
+     *
+     * @param inFlightKey for BACKGROUND requests, identifies the answer from
+     *                    core that ends the request, see onListMessage
+     */
+    public void schedule(final Priority priority, final String inFlightKey, final Runnable send) {
+        synchronized (this) {
+            mQueues[priority.ordinal()].add(new Entry(inFlightKey, send));
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Check if a list message from core answers a BACKGROUND request so the
+     * next one can be sent. Any message for a list ends a requestListAll of
+     * that list, since core may answer it in chunks or with changes before
+     * the listAll. A listElements ends the request with its cookie.
+     */
+    public void onListMessage(final String type, final JSONObject data) {
+        String listName = data.optString("type", null);
+        String cookie = "listElements".equals(type) ? data.optString("cookie", null) : null;
+
+        boolean released = false;
+        synchronized (this) {
+            if (listName != null && mBulkInFlight.remove(requestListAllKey(listName)) != null) {
+                released = true;
+            }
+            if (cookie != null && mBulkInFlight.remove(cookie) != null) {
+                released = true;
+            }
+        }
+        if (released) {
+            scheduleDrain();
+        }
+    }
+
+    public synchronized boolean hasBulkInFlight() {
+        return !mBulkInFlight.isEmpty();
+    }
+
+    public static String requestListAllKey(final String listName) {
+        return "requestListAll:" + listName;
+    }
+
+    public synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        for (Priority priority : Priority.values()) {
+            ClassStats classStats = mStats[priority.ordinal()];
+            JSONObject json = new JSONObject();
+            json.put("queued", mQueues[priority.ordinal()].size());
+            json.put("sent", classStats.sent);
+            json.put("averageWait", classStats.sent > 0 ? classStats.totalWait / classStats.sent : 0);
+            json.put("maxWait", classStats.maxWait);
+            stats.put(priority.name().toLowerCase(Locale.ROOT), json);
+        }
+        stats.put("bulkInFlight", mBulkInFlight.size());
+        return stats;
+    }
+
+    private synchronized void scheduleDrain() {
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    //drain again once the oldest request in flight could time out, must hold the lock
+    private void scheduleWakeUp() {
+        if (!mWakeUpScheduled) {
+            mWakeUpScheduled = true;
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (OutboundScheduler.this) {
+                        mWakeUpScheduled = false;
+                    }
+                    scheduleDrain();
+                }
+            }, BULK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //runs on the background thread
+    private void drain() {
+        Entry entry;
+        while ((entry = next()) != null) {
+            try {
+                entry.send.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "drain: failed to send", e);
+            }
+        }
+    }
+
+    /**
+     * @return the next entry to send, or null once nothing can be sent. When
+     * returning null the drain is done, and is scheduled again if BACKGROUND
+     * requests are waiting for a request in flight to time out.
+     */
+    private synchronized Entry next() {
+        long now = SystemClock.elapsedRealtime();
+        expireBulkInFlight(now);
+
+        Priority[] priorities = Priority.values();
+        for (int pass = 0; pass < 2; ++pass) {
+            for (Priority priority : priorities) {
+                int index = priority.ordinal();
+                if (mCredits[index] > 0 && canSend(priority)) {
+                    --mCredits[index];
+                    return take(priority, now);
+                }
+            }
+
+            //every class with something to send is out of credits, start a new round
+            for (Priority priority : priorities) {
+                mCredits[priority.ordinal()] = priority.weight;
+            }
+        }
+
+        mDrainScheduled = false;
+        if (!mQueues[Priority.BACKGROUND.ordinal()].isEmpty()) {
+            scheduleWakeUp();
+        }
+        return null;
+    }
+
+    //must hold the lock
+    private boolean canSend(final Priority priority) {
+        return !mQueues[priority.ordinal()].isEmpty()
+                && (priority != Priority.BACKGROUND || mBulkInFlight.size() < MAX_BULK_IN_FLIGHT);
+    }
+
+    //must hold the lock
+    private Entry take(final Priority priority, final long now) {
+        Entry entry = mQueues[priority.ordinal()].poll();
+        ClassStats classStats = mStats[priority.ordinal()];
+        long wait = now - entry.enqueueTime;
+        ++classStats.sent;
+        classStats.totalWait += wait;
+        classStats.maxWait = Math.max(classStats.maxWait, wait);
+
+        if (priority == Priority.BACKGROUND && entry.inFlightKey != null) {
+            mBulkInFlight.put(entry.inFlightKey, now);
+        }
+        if (wait > 100) {
+            Log.d(TAG, "take: priority=" + priority + " waited=" + wait + "ms");
+        }
+        return entry;
+    }
+
+    //must hold the lock
+    private void expireBulkInFlight(final long now) {
+        for (Iterator<Map.Entry<String, Long>> iter = mBulkInFlight.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, Long> inFlight = iter.next();
+            if (now - inFlight.getValue() >= BULK_TIMEOUT_MS) {
+                Log.w(TAG, "expireBulkInFlight: no answer for " + inFlight.getKey());
+                iter.remove();
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.bbm.sdk.support.cordova;
 
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
 
 import android.util.Log;
 
@@ -27,13 +28,21 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.os.Bundle;
 import android.os.AsyncTask;
 
@@ -57,6 +66,9 @@ import com.google.firebase.iid.FirebaseInstanceId;
 public class SparkProxy extends CordovaPlugin {
     private static final String TAG = "SparkProxy";
 
+    //the event telling the JS Monitor to drop the value it kept for a released subscription
+    private static final String SUBSCRIPTION_EVICTED = "SubscriptionEvicted";
+
     //Keep a static reference so if cordova creates a new instance we can cleanup the last one
     private static SparkProxy sLastInstance;
 
@@ -66,14 +78,198 @@ public class SparkProxy extends CordovaPlugin {
 
     /**
      * This tracks what lists the JS app has asked to observe. If a list type is in
-     * here then this will forward JSON messages from core to the JS app
+     * here then this will forward JSON messages from core to the JS app.
+     * Changed on the main thread and checked by onMessage.
+     */
+    private final Set<String> mListsToProxy = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The lists in mListsToProxy that resync asked core for again. Their next
+     * listAll is compared with what the JS app has and only the differences
+     * are forwarded.
      */
-    private HashSet<String> mListsToProxy = new HashSet();
+    private final Set<String> mListResyncs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    private HashMap<String, HashMap<String, JSONObject>> mGlobalsToProxy = new HashMap();
+    /**
+     * Who asked for each requestListAll not answered yet, oldest first per
+     * list: true for the JS app, false when only wanted natively, such as the
+     * chat list for the aggregates. Added to when sending and taken by onMessage.
+     */
+    private final HashMap<String, ArrayDeque<Boolean>> mListAllRequesters = new HashMap<>();
+
+    /**
+     * The list elements the JS app observes, such as globals or a single chat.
+     * Released ones are cached with the value the JS app last got until they
+     * are evicted.
+     */
+    private final SubscriptionRegistry mSubscriptions = new SubscriptionRegistry(new SubscriptionRegistry.EvictionListener() {
+        @Override
+        public void onEvicted(SubscriptionRegistry.Subscription subscription) {
+            forgetSubscription(subscription);
+            String alias = subscription.getReleasedAlias();
+            if (alias != null) {
+                try {
+                    CordovaHelper.sendChangedEvent(SUBSCRIPTION_EVICTED, subscription.listName, new JSONObject(alias), false);
+                } catch (JSONException je) {
+                    Log.e(TAG, "onEvicted: failed to tell the JS app for listName=" + subscription.listName, je);
+                }
+            }
+        }
+    });
 
     private HashSet<String> mMessagesToProxy = new HashSet();
 
+    /**
+     * Lookup of everything in mListsToProxy, mSubscriptions and mMessagesToProxy,
+     * plus the lists used natively, that can be checked from any thread. Used to
+     * drop messages from core that nothing is observing before any work is done on them.
+     */
+    private final MessageFilter mMessageFilter = new MessageFilter(ChatAggregates.COOKIE_PREFIX, ChatMessageSearchIndex.COOKIE_PREFIX);
+
+    private final ElementMatcher mElementMatcher = new ElementMatcher();
+
+    /**
+     * All messages to core go through here so the ones the user sends are not
+     * stuck behind bulk list requests.
+     */
+    private final OutboundScheduler mOutboundScheduler = new OutboundScheduler();
+
+    /**
+     * The last values sent to the JS app for the elements in mSubscriptions
+     * and the lists in mListsToProxy, used to only forward what changed after
+     * a resync.
+     */
+    private final DeliveredValueCache mDeliveredValues = new DeliveredValueCache();
+
+    /**
+     * The requestListElements sent by resync, keyed by cookie. Each maps to the
+     * subscription keys that were requested and not answered yet. Filled on the
+     * main thread and taken by onMessage, so it is synchronized. A request is
+     * only used by the thread that took it out.
+     */
+    private final Map<String, ResyncRequest> mResyncRequests = Collections.synchronizedMap(new HashMap<String, ResyncRequest>());
+
+    /**
+     * Limits how often changes to observed elements of high frequency lists, or to
+     * each element of a list observed as a whole, are sent to the JS app. The rate
+     * is set by the JS app when observing.
+     */
+    private final EventThrottler mThrottler = new EventThrottler(mMainHandler, new EventThrottler.Sender() {
+        @Override
+        public void send(String listName, JSONObject properties, Object value, boolean merge) throws JSONException {
+            if (value instanceof String) {
+                CordovaHelper.sendChangedEvent(listName, properties, (String)value);
+            } else {
+                CordovaHelper.sendChangedEvent(listName, properties, (JSONObject)value, merge);
+            }
+        }
+    });
+
+    /**
+     * True once SupportVoipManager was started, either by warming up the call
+     * pipeline when BBM Enterprise starts or by handleIncomingCalls.
+     */
+    private boolean mVoipManagerStarted;
+
+    //true once the JS app searched chat messages, only set on the main thread
+    //but checked by searchChatMessages
+    private volatile boolean mSearchIndexUsed;
+
+    //true if the JS app asked to warm up the call pipeline when setting up, set on the
+    //thread execute is called on and read when BBM Enterprise starts
+    private volatile boolean mWarmUpCalls;
+
+    private CallSetupTracker mCallSetupTracker;
+
+    /**
+     * Keeps recent chat messages from the chatMessage list traffic on disk so the
+     * JS app can show a chat's history before its subscription catches up. Only
+     * set when the JS app opted in with storeChatMessages in setupStart. Set on
+     * the main thread and used from onMessage.
+     */
+    private volatile ChatMessageStore mChatMessageStore;
+
+    /**
+     * Full text index of the chat messages in the chatMessage list traffic.
+     * Created with the plugin since onMessage can use it before pluginInitialize.
+     */
+    private final ChatMessageSearchIndex mSearchIndex = new ChatMessageSearchIndex(new ChatMessageSearchIndex.Sender() {
+        @Override
+        public void requestChat(String chatId, String cookie) throws JSONException {
+            JSONObject element = new JSONObject();
+            element.put("chatId", chatId);
+            sendBackfillRequest("chat", new JSONArray().put(element), cookie);
+        }
+
+        @Override
+        public void requestChatMessages(JSONArray elements, String cookie) throws JSONException {
+            sendBackfillRequest("chatMessage", elements, cookie);
+        }
+
+        private void sendBackfillRequest(final String listName, final JSONArray elements, final String cookie) throws JSONException {
+            ProtocolMessage message = new ProtocolMessage("requestListElements", new JSONObject());
+            message.getData().put("type", listName);
+            message.getData().put("elements", elements);
+            message.getData().put("cookie", cookie);
+            //prefetching a chat's history to search it, so it waits behind what the app is showing
+            sendToCore(OutboundScheduler.Priority.BACKGROUND, cookie, message);
+        }
+    });
+
+    /**
+     * Unread counts and last messages per chat, observed by the JS app as the
+     * 'aggregate' pseudo-global.
+     */
+    private final ChatAggregates mChatAggregates = new ChatAggregates(new ChatAggregates.Sender() {
+        @Override
+        public void requestChats() throws JSONException {
+            //the answer isn't forwarded to the JS app even if it observes the chat list
+            sendRequestListAll("chat", OutboundScheduler.Priority.BACKGROUND, false);
+        }
+
+        @Override
+        public void requestChatMessages(JSONArray elements, String cookie) throws JSONException {
+            ProtocolMessage message = new ProtocolMessage("requestListElements", new JSONObject());
+            message.getData().put("type", "chatMessage");
+            message.getData().put("elements", elements);
+            message.getData().put("cookie", cookie);
+            //the answer is only used natively, and the aggregates already sent what they have
+            sendToCore(OutboundScheduler.Priority.BACKGROUND, cookie, message);
+        }
+    });
+
+    private static class ResyncRequest {
+        final String listName;
+        final HashSet<String> pendingKeys;
+
+        ResyncRequest(final String listName, final HashSet<String> pendingKeys) {
+            this.listName = listName;
+            this.pendingKeys = pendingKeys;
+        }
+    }
+
+    /**
+     * The property the JS app used to observe the connection state, null when not observed.
+     */
+    private JSONObject mConnectionStateProperty;
+
+    /**
+     * Holds read markers and list changes while core is offline and sends them
+     * in one batch when it reconnects.
+     */
+    private final OutboundQueue mOutboundQueue = new OutboundQueue(new OutboundQueue.Sender() {
+        @Override
+        public void sendInvoke(JSONObject object) throws JSONException {
+            //the invoke call returned when the message was held, so there is no one to report a failure to
+            sendInvokeMessage(object, null);
+        }
+
+        @Override
+        public void sendMutate(String action, String type, JSONArray elements) throws JSONException {
+            sendMutateMessage(action, type, elements);
+        }
+    });
+
     private static class FirebasePushTokenTask extends AsyncTask {
         // The call to get the token is blocking so we run it off the main UI thread
         @Override
@@ -101,8 +297,16 @@ public class SparkProxy extends CordovaPlugin {
     private ProtocolMessageConsumer mProtocolMessageConsumer = new ProtocolMessageConsumer() {
         @Override
         public void onMessage(final ProtocolMessage message) {
+            BridgeTracer.begin(message);
+            try {
+                dispatchMessage(message);
+            } finally {
+                BridgeTracer.end();
+            }
+        }
+
+        private void dispatchMessage(final ProtocolMessage message) {
             final String type = message.getType();
-            Log.d(TAG, "onMessage: type="+type);
             switch (type) {
             case "listAdd":
             case "listAll":
@@ -110,10 +314,27 @@ public class SparkProxy extends CordovaPlugin {
             case "listChunk":
             case "listElements":
             case "listRemove":
-            case "listResync":
-                processListMessage(message);
+            case "listResync": {
+                //only look at the list name until we know something is observing the list
+                final JSONObject data = message.getData();
+                if (data != null && mOutboundScheduler.hasBulkInFlight()) {
+                    mOutboundScheduler.onListMessage(type, data);
+                }
+                //taken before filtering so an answer nothing uses any more still ends its request
+                final boolean forApp = data == null || isListAllForApp(type, data.optString("type", null));
+                if (!mMessageFilter.acceptList(data != null ? data.optString("type", null) : null,
+                        data != null ? data.optString("cookie", null) : null)) {
+                    return;
+                }
+                Log.d(TAG, "onMessage: type="+type);
+                processListMessage(message, forApp);
                 return;
+            }
             default:
+                if (!mMessageFilter.acceptMessage(type)) {
+                    return;
+                }
+                Log.d(TAG, "onMessage: type="+type);
                 processIndividualMessage(message);
                 return;
             }
@@ -121,20 +342,72 @@ public class SparkProxy extends CordovaPlugin {
 
         @Override
         public void resync() {
+            Log.d(TAG, "resync: lists=" + mListsToProxy.size() + " element lists=" + mSubscriptions.getListNames().size());
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    resyncSubscriptions();
+                }
+            });
         }
 
-        private void processListMessage(final ProtocolMessage message) {
+        /**
+         * @param forApp false if the message answers a request the JS app didn't make,
+         *               so it is only used natively
+         */
+        private void processListMessage(final ProtocolMessage message, final boolean forApp) {
             final String type = message.getType();
             final JSONObject data = message.getData();
             if (data != null) {
                 try {
                     String listName = data.getString("type");
-                    if (mListsToProxy.contains(listName)) {
-                        Log.d(TAG, "processListMessage: sending event to JS for type=" + type + " listName="
-                                + listName + " message=" + message);
-                        //pass false for merge, list element changes should not merge with the old object that
-                        //the app could have a reference to and not detect changes to it.
-                        CordovaHelper.sendChangedEvent(listName, null, message.getJSON(), false);
+
+                    if ("chatMessage".equals(listName)) {
+                        JSONArray chatMessages = data.optJSONArray("elements");
+                        ChatMessageStore chatMessageStore = mChatMessageStore;
+                        if (chatMessageStore != null) {
+                            chatMessageStore.update(type, chatMessages);
+                        }
+                        mSearchIndex.update(type, chatMessages);
+                        updateChatAggregates(listName, type, chatMessages);
+                    } else if ("chat".equals(listName)) {
+                        updateChatAggregates(listName, type, data.optJSONArray("elements"));
+                    }
+
+                    String cookie = data.optString("cookie", null);
+                    if (cookie != null && cookie.startsWith(ChatAggregates.COOKIE_PREFIX)) {
+                        //only requested for the aggregates
+                        return;
+                    }
+                    if (cookie != null && cookie.startsWith(ChatMessageSearchIndex.COOKIE_PREFIX)) {
+                        //only requested to backfill the search index
+                        mSearchIndex.backfillResponse(listName, cookie, data.optJSONArray("elements"));
+                        return;
+                    }
+                    ResyncRequest resyncRequest = cookie != null ? mResyncRequests.remove(cookie) : null;
+                    if (resyncRequest != null) {
+                        processResyncElements(resyncRequest, data);
+                        return;
+                    }
+
+                    if (forApp && mListsToProxy.contains(listName)) {
+                        JSONArray elements = data.optJSONArray("elements");
+                        DeliveredValueCache.ListDiff diff = null;
+                        if ("listAll".equals(type) && mListResyncs.remove(listName)) {
+                            diff = mDeliveredValues.diffList(listName, elements);
+                        } else {
+                            mDeliveredValues.recordList(type, listName, elements);
+                        }
+
+                        if (diff != null) {
+                            sendListDiff(listName, diff);
+                        } else {
+                            Log.d(TAG, "processListMessage: sending event to JS for type=" + type + " listName="
+                                    + listName + " message=" + message);
+                            //sent with false for merge, list element changes should not merge with the old object that
+                            //the app could have a reference to and not detect changes to it.
+                            mThrottler.sendList(listName, type, elements, message.getJSON());
+                        }
                     }
 
                     Log.d(TAG, "processListMessage: listName="+listName+" not in mListsToProxy="+mListsToProxy);
@@ -150,46 +423,77 @@ public class SparkProxy extends CordovaPlugin {
         private void processListMessage(final String listName, final JSONObject data, final String type) throws JSONException {
             JSONArray elements = data.optJSONArray("elements");
             if (elements != null && elements.length() > 0) {
-                HashMap<String, JSONObject> propertiesList = mGlobalsToProxy.get(listName);
-                if (propertiesList != null) {
-                    for (int i=0;i<elements.length();++i) {
-                        JSONObject object = elements.getJSONObject(i);
-
-                        for(JSONObject properties : propertiesList.values()) {
-                            boolean match = true;
-                            for(Iterator<String> iter = properties.keys(); iter.hasNext(); ) {
-                                String property = iter.next();
-                                String value = object.optString(property);
-                                if(value == null || !value.equals(properties.get(property))) {
-                                  match = false;
-                                  break;
-                                }
-                            }
+                SubscriptionRegistry.Subscription[] subscriptions = mSubscriptions.get(listName);
+                if (subscriptions.length > 0) {
+                    //large batches are matched and serialized in parallel, the matches are still delivered in element order.
+                    //A traced message is serialized as it is sent so the tracer can stamp each event.
+                    ElementMatcher.PayloadBuilder builder = BridgeTracer.isTracing() ? null : new ElementEventsBuilder(listName, type);
+                    for (ElementMatcher.Match match : mElementMatcher.match(elements, subscriptions, builder)) {
+                        deliverElement(listName, match.subscription, match.object, type, (ElementEvents)match.payload);
+                    }
+                } else {
+                    Log.d(TAG, "processListMessage: ignoring list="+listName+" not in proxy list with size="+mSubscriptions.size());
+                }
+            }
+        }
 
-                            if(match) {
-                                boolean merge = "listChange".equals(type);
-                                Log.d(TAG, "processListMessage: sending object="+object+" merge="+merge+" type="+type);
-                                if ("global".equals(listName)) {
-                                    //Just send the JSON as is to JS app to handle
-                                    JSONObject valueObject = object.optJSONObject("value");
-                                    if(valueObject != null) {
-                                        CordovaHelper.sendChangedEvent("global", properties, valueObject, merge);
-                                    } else {
-                                        CordovaHelper.sendChangedEvent("global", properties, object.getString("value"));
-                                    }
-                                } else {
-                                    if ( "listRemove".equals(type)) {
-                                        object = null;
-                                    }
-                                    CordovaHelper.sendChangedEvent(listName, properties, object, merge);
-                                }
+        /**
+         * Handle the answer to a requestListElements sent by resync. Only the
+         * elements that differ from what the JS app last saw are forwarded, and
+         * requested elements that were not returned are reported as removed.
+         */
+        private void processResyncElements(final ResyncRequest request, final JSONObject data) throws JSONException {
+            final String listName = request.listName;
+            JSONArray elements = data.optJSONArray("elements");
+            int sent = 0;
+
+            if (elements != null) {
+                for (int i=0;i<elements.length();++i) {
+                    JSONObject object = elements.getJSONObject(i);
+                    for (String key : request.pendingKeys.toArray(new String[0])) {
+                        SubscriptionRegistry.Subscription subscription = mSubscriptions.get(listName, key);
+                        if (subscription != null && subscription.matches(object)) {
+                            request.pendingKeys.remove(key);
+                            if (mDeliveredValues.hasChanged(listName, key, deliveredValue(listName, object))) {
+                                deliverElement(listName, subscription, object, "listElements");
+                                ++sent;
                             }
                         }
                     }
-                } else {
-                    Log.d(TAG, "processListMessage: ignoring list="+listName+" not in proxy list with size="+mGlobalsToProxy.size());
                 }
             }
+
+            //anything that was requested but not returned no longer exists in core, globals are never removed
+            for (String key : "global".equals(listName) ? new HashSet<String>() : request.pendingKeys) {
+                SubscriptionRegistry.Subscription subscription = mSubscriptions.get(listName, key);
+                if (subscription != null && mDeliveredValues.hasValue(listName, key)) {
+                    deliverElement(listName, subscription, null, "listRemove");
+                    ++sent;
+                }
+            }
+            Log.d(TAG, "processResyncElements: listName=" + listName + " returned="
+                    + (elements != null ? elements.length() : 0) + " sent=" + sent);
+        }
+
+        /**
+         * Send the JS app the elements of a list that changed while core was
+         * resyncing, as the list messages it would have got had it stayed up.
+         */
+        private void sendListDiff(final String listName, final DeliveredValueCache.ListDiff diff) throws JSONException {
+            Log.d(TAG, "sendListDiff: listName=" + listName + " added=" + diff.added.length()
+                    + " changed=" + diff.changed.length() + " removed=" + diff.removed.length());
+            sendListEvent("listAdd", listName, diff.added);
+            sendListEvent("listChange", listName, diff.changed);
+            sendListEvent("listRemove", listName, diff.removed);
+        }
+
+        private void sendListEvent(final String type, final String listName, final JSONArray elements) throws JSONException {
+            if (elements.length() > 0) {
+                JSONObject data = new JSONObject();
+                data.put("type", listName);
+                data.put("elements", elements);
+                mThrottler.sendList(listName, type, elements, new ProtocolMessage(type, data).getJSON());
+            }
         }
 
         private void processIndividualMessage(final ProtocolMessage message) {
@@ -211,6 +515,185 @@ public class SparkProxy extends CordovaPlugin {
 
     };
 
+    /**
+     * The JSON sent to the JS app for a matched element.
+     */
+    private static Object deliveredValue(final String listName, final JSONObject object) {
+        if ("global".equals(listName)) {
+            JSONObject valueObject = object.optJSONObject("value");
+            return valueObject != null ? valueObject : object.optString("value");
+        }
+        return object;
+    }
+
+    /**
+     * The value sent to the JS app for a matched element of a list message.
+     */
+    private static Object elementValue(final String listName, final JSONObject object, final String type) {
+        if ("global".equals(listName)) {
+            //Just send the JSON as is to JS app to handle
+            return deliveredValue(listName, object);
+        }
+        return "listRemove".equals(type) ? null : object;
+    }
+
+    private static boolean elementMerge(final String listName, final Object value, final String type) {
+        //a global with a plain value has nothing to merge into
+        return "listChange".equals(type) && (!"global".equals(listName) || value instanceof JSONObject);
+    }
+
+    /**
+     * The events for a matched element, serialized ahead of sending, one for
+     * each alias the subscription had when they were built.
+     */
+    private static class ElementEvents {
+        final String[] aliases;
+        final PluginResult[] results;
+
+        ElementEvents(final String[] aliases, final PluginResult[] results) {
+            this.aliases = aliases;
+            this.results = results;
+        }
+    }
+
+    /**
+     * Builds the events deliverElement sends for a match, so serializing
+     * large batches runs on the ElementMatcher workers.
+     */
+    private static class ElementEventsBuilder implements ElementMatcher.PayloadBuilder {
+        private final String mListName;
+        private final String mType;
+
+        ElementEventsBuilder(final String listName, final String type) {
+            mListName = listName;
+            mType = type;
+        }
+
+        @Override
+        public Object build(final SubscriptionRegistry.Subscription subscription, final JSONObject object) throws JSONException {
+            Object value = elementValue(mListName, object, mType);
+            boolean merge = elementMerge(mListName, value, mType);
+            String[] aliases = subscription.getAliases();
+            PluginResult[] results = new PluginResult[aliases.length];
+            for (int i = 0; i < aliases.length; ++i) {
+                //the result serializes the response when created
+                results[i] = new PluginResult(PluginResult.Status.OK,
+                        CordovaHelper.toCordovaResponse(mListName, new JSONObject(aliases[i]), value, merge));
+            }
+            return new ElementEvents(aliases, results);
+        }
+    }
+
+    private void deliverElement(final String listName, final SubscriptionRegistry.Subscription subscription, final JSONObject object, final String type) throws JSONException {
+        deliverElement(listName, subscription, object, type, null);
+    }
+
+    /**
+     * Send a matched element to each observer of the subscription and remember
+     * what was sent.
+     *
+     * @param events the events already serialized for the element, or null
+     */
+    private void deliverElement(final String listName, final SubscriptionRegistry.Subscription subscription, final JSONObject object,
+                                final String type, final ElementEvents events) throws JSONException {
+        Object value = elementValue(listName, object, type);
+        boolean merge = elementMerge(listName, value, type);
+        Log.d(TAG, "processListMessage: sending object="+object+" merge="+merge+" type="+type);
+        mDeliveredValues.record(listName, subscription.getKey(), value, merge);
+        String[] aliases = events != null ? events.aliases : subscription.getAliases();
+        for (int i = 0; i < aliases.length; ++i) {
+            if (events != null && !mThrottler.isThrottled(listName, aliases[i])) {
+                CordovaHelper.sendChangedEvent(listName, aliases[i], events.results[i]);
+            } else {
+                //events go back with the properties exactly as the JS app observed them
+                mThrottler.send(listName, aliases[i], new JSONObject(aliases[i]), value, merge);
+            }
+        }
+    }
+
+    /**
+     * Check if a list message answers a requestListAll made for the JS app.
+     * Core answers the requests for a list in order, so a listAll answers the
+     * oldest one, and the listChunks before it belong to the same answer.
+     */
+    private boolean isListAllForApp(final String type, final String listName) {
+        boolean listAll = "listAll".equals(type);
+        if (!listAll && !"listChunk".equals(type)) {
+            return true;
+        }
+        synchronized (mListAllRequesters) {
+            ArrayDeque<Boolean> requesters = mListAllRequesters.get(listName);
+            if (requesters == null) {
+                //not requested by the plugin, such as by the JS app through invoke
+                return true;
+            }
+            Boolean forApp = listAll ? requesters.poll() : requesters.peek();
+            if (requesters.isEmpty()) {
+                mListAllRequesters.remove(listName);
+            }
+            return forApp == null || forApp;
+        }
+    }
+
+    /**
+     * Called after core restarts or resyncs. Ask core again for only what the JS
+     * app is observing: one request per observed list, and one batched
+     * requestListElements per list with observed elements.
+     */
+    private void resyncSubscriptions() {
+        //what the JS app kept for released subscriptions may be out of date now
+        mSubscriptions.evictReleased();
+        mResyncRequests.clear();
+        synchronized (mListAllRequesters) {
+            //the requests made before core restarted won't be answered
+            mListAllRequesters.clear();
+        }
+        mSearchIndex.resetBackfills();
+
+        try {
+            mChatAggregates.reset(true);
+        } catch (JSONException je) {
+            Log.e(TAG, "resyncSubscriptions: failed to reload aggregates", je);
+        }
+
+        for (String listName : mListsToProxy) {
+            try {
+                mListResyncs.add(listName);
+                sendRequestListAll(listName, OutboundScheduler.Priority.BACKGROUND, true);
+            } catch (JSONException je) {
+                Log.e(TAG, "resyncSubscriptions: failed to request list=" + listName, je);
+            }
+        }
+
+        for (String listName : mSubscriptions.getListNames()) {
+            SubscriptionRegistry.Subscription[] subscriptions = mSubscriptions.get(listName);
+            if (subscriptions.length == 0) {
+                continue;
+            }
+
+            try {
+                JSONArray elements = new JSONArray();
+                HashSet<String> keys = new HashSet<String>();
+                for (SubscriptionRegistry.Subscription subscription : subscriptions) {
+                    elements.put(subscription.toJSON());
+                    keys.add(subscription.getKey());
+                }
+
+                String cookie = UUID.randomUUID().toString();
+                ProtocolMessage message = new ProtocolMessage("requestListElements", new JSONObject());
+                message.getData().put("type", listName);
+                message.getData().put("elements", elements);
+                message.getData().put("cookie", cookie);
+                mResyncRequests.put(cookie, new ResyncRequest(listName, keys));
+
+                Log.d(TAG, "resyncSubscriptions: requesting " + elements.length() + " elements for list=" + listName);
+                sendToCore(OutboundScheduler.Priority.BACKGROUND, cookie, message);
+            } catch (JSONException je) {
+                Log.e(TAG, "resyncSubscriptions: failed to request elements for list=" + listName, je);
+            }
+        }
+    }
+
     public SparkProxy() {
         Log.d(TAG, "sLastInstance="+sLastInstance);
         if (sLastInstance != null) {
@@ -220,9 +703,61 @@ public class SparkProxy extends CordovaPlugin {
         sLastInstance = this;
     }
 
+    @Override
+    protected void pluginInitialize() {
+        mCallSetupTracker = new CallSetupTracker(mMainHandler, getActivity());
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateMessageFilter();
+            }
+        });
+    }
+
+    /**
+     * The page was reloaded or navigated away, so nothing the JS app observed
+     * has a handler any more and it won't call observeStop for it.
+     */
+    @Override
+    public void onReset() {
+        Log.d(TAG, "onReset: subscriptions=" + mSubscriptions.size() + " lists=" + mListsToProxy.size());
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (SubscriptionRegistry.Subscription subscription : mSubscriptions.clear()) {
+                    forgetSubscription(subscription);
+                }
+                for (String listName : mListsToProxy) {
+                    mDeliveredValues.removeList(listName);
+                    mThrottler.removeList(listName);
+                }
+                mListsToProxy.clear();
+                mListResyncs.clear();
+                mMessagesToProxy.clear();
+                mMessageFilter.setMessages(mMessagesToProxy);
+                updateMessageFilter();
+            }
+        });
+    }
+
     private void cleanup() {
         Log.d(TAG, "cleanup: ");
         BBMEnterprise.getInstance().getBbmdsProtocolConnector().removeMessageConsumer(mProtocolMessageConsumer);
+        mElementMatcher.shutdown();
+        //hand what is held to core, which queues it until it is connected
+        mOutboundQueue.flush();
+        mOutboundScheduler.shutdown();
+        if (mCallSetupTracker != null) {
+            mCallSetupTracker.release();
+        }
+        if (mChatMessageStore != null) {
+            //closed after the pending writes, and before the next instance opens the file
+            mChatMessageStore.close();
+            mChatMessageStore = null;
+        }
+        //updates the core thread still passes in are ignored
+        mSearchIndex.close();
+        BridgeTracer.stop();
     }
 
     @Override
@@ -247,6 +782,9 @@ public class SparkProxy extends CordovaPlugin {
         case "observeStop": {
             return observeStop(args, callbackContext);
         }
+        case "observeOptions": {
+            return observeOptions(args, callbackContext);
+        }
         case "pushStart": {
             return pushStart();
         }
@@ -256,6 +794,31 @@ public class SparkProxy extends CordovaPlugin {
         case "makeCall": {
             return makeCall(args, callbackContext);
         }
+        case "getStats": {
+            return getStats(callbackContext);
+        }
+        case "getStoredChatMessages": {
+            return getStoredChatMessages(args, callbackContext);
+        }
+        case "searchChatMessages": {
+            return searchChatMessages(args, callbackContext);
+        }
+        case "traceStart": {
+            return traceStart(args, callbackContext);
+        }
+        case "traceStop": {
+            File file = BridgeTracer.stop();
+            if (file != null) {
+                callbackContext.success(file.getAbsolutePath());
+            } else {
+                //success(String) would quote a null as an empty string on some cordova versions
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, (String)null));
+            }
+            return true;
+        }
+        case "traceReport": {
+            return traceReport(args);
+        }
         default: {
             Log.w(TAG, "execute: ignoring action=" + action + " args.len=" + args.length() + " args=" + args);
             callbackContext.error("ignoring action=" + action + " with " + args.length() + " args");
@@ -332,9 +895,12 @@ public class SparkProxy extends CordovaPlugin {
               }
             }
 
-            ProxiedMessage message = new ProxiedMessage(object);
-            Log.d(TAG, "execute: invoke: sending message=" + message);
-            BBMEnterprise.getInstance().getBbmdsProtocol().send(message);
+            if (mOutboundQueue.offerInvoke(object)) {
+                Log.d(TAG, "execute: invoke: offline, holding message=" + object);
+                return true;
+            }
+
+            sendInvokeMessage(object, callbackContext);
             return true;
         } catch (Exception e) {
             Log.w(TAG, "execute: Failed to invoke", e);
@@ -343,8 +909,45 @@ public class SparkProxy extends CordovaPlugin {
         }
     }
     
+    /**
+     * Queue an invoke message to core. It is sent later on the scheduler
+     * thread, so a failure to send is reported to callbackContext from there.
+     *
+     * @param callbackContext the invoke call to report a failure to, or null
+     */
+    private void sendInvokeMessage(final JSONObject object, final CallbackContext callbackContext) throws JSONException {
+        final ProxiedMessage message = new ProxiedMessage(object);
+        mOutboundScheduler.schedule(OutboundScheduler.Priority.USER, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.d(TAG, "execute: invoke: sending message=" + message);
+                    BBMEnterprise.getInstance().getBbmdsProtocol().send(message);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "execute: Failed to invoke", e);
+                    if (callbackContext != null) {
+                        callbackContext.error("Failed to invoke due to " + e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a message to core. Messages are sent in priority order rather than
+     * call order, see OutboundScheduler.
+     */
+    private void sendToCore(final OutboundScheduler.Priority priority, final String inFlightKey, final ProtocolMessage message) {
+        mOutboundScheduler.schedule(priority, inFlightKey, new Runnable() {
+            @Override
+            public void run() {
+                BBMEnterprise.getInstance().getBbmdsProtocolConnector().send(message);
+            }
+        });
+    }
+
     private boolean observeStart(JSONArray args, CallbackContext callbackContext) throws JSONException {
-        if (args.length() != 3) {
+        if (args.length() < 3) {
             Log.w(TAG, "observeStart: invalid args.len=" + args.length()+" args="+args);
             return false;
         }
@@ -352,20 +955,31 @@ public class SparkProxy extends CordovaPlugin {
         String eventKey = args.getString(0);
         JSONObject eventProperty = args.optJSONObject(1);
 
-        Log.d(TAG, "observeStart: eventKey=" + eventKey + " eventProperty=" + eventProperty);
+        JSONObject options = args.optJSONObject(3);
+
+        Log.d(TAG, "observeStart: eventKey=" + eventKey + " eventProperty=" + eventProperty + " options=" + options);
+
+        if (options != null && options.has("maxRate")) {
+            setMaxRate(eventKey, eventProperty, options.optDouble("maxRate", 0));
+        }
 
         if ("Spark".equals(eventKey)) {
             String eventName = eventProperty != null ? eventProperty.getString("value") : null;
             if ("state".equals(eventName)) {
                 observeSparkState(eventKey, eventProperty, callbackContext);
+            } else if ("connectionState".equals(eventName)) {
+                observeConnectionState(eventProperty, callbackContext);
             } else {
                 Log.w(TAG, "observeStart: ignoring eventName="+eventName);
                 callbackContext.error("ignoring eventName="+eventName);
                 return false;
             }
+        } else if (ChatAggregates.EVENT_KEY.equals(eventKey) && eventProperty != null) {
+            observeAggregate(eventProperty, callbackContext);
         } else if ("ProtocolMessages".equals(eventKey)) {
           if(eventProperty != null) {
             mMessagesToProxy.add(eventProperty.getString("value"));
+            mMessageFilter.setMessages(mMessagesToProxy);
           }
         } else {
             if (eventProperty != null) {
@@ -379,8 +993,39 @@ public class SparkProxy extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * The options for something already observed changed, which happens when
+     * the JS app adds or removes a handler with different options.
+     */
+    private boolean observeOptions(JSONArray args, CallbackContext callbackContext) throws JSONException {
+        if (args.length() < 4) {
+            Log.w(TAG, "observeOptions: invalid args.len=" + args.length()+" args="+args);
+            return false;
+        }
+
+        String eventKey = args.getString(0);
+        JSONObject eventProperty = args.optJSONObject(1);
+        JSONObject options = args.getJSONObject(3);
+
+        Log.d(TAG, "observeOptions: eventKey=" + eventKey + " eventProperty=" + eventProperty + " options=" + options);
+
+        setMaxRate(eventKey, eventProperty, options.optDouble("maxRate", 0));
+        callbackContext.success();
+        return true;
+    }
+
+    private void setMaxRate(final String eventKey, final JSONObject eventProperty, final double maxRate) {
+        if (eventProperty != null) {
+            //the rate only applies to this element, keyed the same way deliverElement sends it
+            mThrottler.setMaxRate(eventKey, eventProperty.toString(), maxRate);
+        } else {
+            //the rate applies to each element of the list on its own
+            mThrottler.setListMaxRate(eventKey, maxRate);
+        }
+    }
+
     private boolean observeStop(JSONArray args, CallbackContext callbackContext) throws JSONException {
-        if (args.length() != 3) {
+        if (args.length() < 3) {
             Log.w(TAG, "observeStop: invalid args.len=" + args.length()+" args="+args);
             return false;
         }
@@ -394,14 +1039,19 @@ public class SparkProxy extends CordovaPlugin {
             String eventName = eventProperty != null ? eventProperty.getString("value") : null;
             if ("state".equals(eventName)) {
                 observeSparkStateStop(eventKey, eventProperty, callbackContext);
+            } else if ("connectionState".equals(eventName)) {
+                observeConnectionStateStop(eventProperty, callbackContext);
             } else {
                 Log.w(TAG, "observeStop: ignoring eventName="+eventName);
                 callbackContext.error("ignoring eventName="+eventName);
                 return false;
             }
+        } else if (ChatAggregates.EVENT_KEY.equals(eventKey) && eventProperty != null) {
+            observeAggregateStop(eventProperty);
         } else if ("ProtocolMessages".equals(eventKey)) {
           if(eventProperty != null) {
             mMessagesToProxy.remove(eventProperty.getString("value"));
+            mMessageFilter.setMessages(mMessagesToProxy);
           }
         } else {
             if (eventProperty != null) {
@@ -423,22 +1073,183 @@ public class SparkProxy extends CordovaPlugin {
     }
 
     private boolean handleIncomingCalls() {
-        // Initialize the support library voice and video call manager
-        // The manager listens for incoming calls and displays the call activity to users.
-        SupportVoipManager.startSupportVoipManager(getActivity().getApplicationContext());
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startVoipManager();
+            }
+        });
         return true;
     }
 
-    private boolean makeCall(JSONArray args, CallbackContext callbackContext) throws JSONException {
+    //must be called on the main thread
+    private void startVoipManager() {
+        if (!mVoipManagerStarted) {
+            // Initialize the support library voice and video call manager
+            // The manager listens for incoming calls and displays the call activity to users.
+            SupportVoipManager.startSupportVoipManager(getActivity().getApplicationContext());
+            mVoipManagerStarted = true;
+        }
+    }
+
+    /**
+     * Start the call manager as soon as BBM Enterprise is started so the first
+     * call doesn't have to wait for it.
+     */
+    private void warmUpCalls() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mWarmUpCalls && !mVoipManagerStarted) {
+                    Log.d(TAG, "warmUpCalls: starting the call manager");
+                    startVoipManager();
+                }
+            }
+        });
+    }
+
+    private boolean makeCall(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        final long startTime = SystemClock.elapsedRealtime();
         if (args.length() != 1) {
             Log.w(TAG, "makeCall: invalid args.len=" + args.length()+" args="+args);
             return false;
         }
 
         JSONObject options = args.getJSONObject(0);
-        String regId = options.getString("regId");
+        final long regId;
+        try {
+            regId = Long.parseLong(options.getString("regId"));
+        } catch (NumberFormatException nfe) {
+            Log.w(TAG, "makeCall: invalid regId in options=" + options);
+            callbackContext.error("Invalid regId " + options.optString("regId"));
+            return false;
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //the call manager is normally already running, start it now if the app didn't
+                boolean warm = mVoipManagerStarted;
+                startVoipManager();
+                mCallSetupTracker.setWarm(warm);
+                mCallSetupTracker.callStarted(startTime, callbackContext);
+                SupportVoipManager.startCall(getActivity(), regId);
+            }
+        });
+        return true;
+    }
 
-        SupportVoipManager.startCall(getActivity(), Long.parseLong(regId));
+    private boolean getStoredChatMessages(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (args.length() != 2) {
+            Log.w(TAG, "getStoredChatMessages: invalid args.len=" + args.length()+" args="+args);
+            return false;
+        }
+
+        final String chatId = args.getString(0);
+        final int count = args.getInt(1);
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ChatMessageStore chatMessageStore = mChatMessageStore;
+                    if (chatMessageStore == null) {
+                        callbackContext.error("storeChatMessages was not enabled in setupStart");
+                        return;
+                    }
+                    callbackContext.success(chatMessageStore.getRecent(chatId, count));
+                } catch (Exception e) {
+                    Log.e(TAG, "getStoredChatMessages: Failed for chatId=" + chatId, e);
+                    callbackContext.error(e.toString());
+                }
+            }
+        });
+        return true;
+    }
+
+    private boolean searchChatMessages(JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (args.length() < 1) {
+            Log.w(TAG, "searchChatMessages: invalid args.len=" + args.length()+" args="+args);
+            return false;
+        }
+
+        final String query = args.getString(0);
+        JSONObject options = args.optJSONObject(1);
+        final String chatId = options != null ? options.optString("chatId", null) : null;
+        final int offset = options != null ? options.optInt("offset", 0) : 0;
+        final int limit = options != null ? options.optInt("limit", 20) : 20;
+        if (!mSearchIndexUsed) {
+            //from now on chat messages are needed to keep the index up to date
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSearchIndexUsed = true;
+                    updateMessageFilter();
+                }
+            });
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callbackContext.success(mSearchIndex.search(query, chatId, offset, limit));
+                } catch (Exception e) {
+                    Log.e(TAG, "searchChatMessages: Failed for query=" + query, e);
+                    callbackContext.error(e.toString());
+                }
+            }
+        });
+        return true;
+    }
+
+    private boolean traceStart(JSONArray args, final CallbackContext callbackContext) {
+        JSONObject options = args.optJSONObject(0);
+        final double sampleRate = options != null ? options.optDouble("sampleRate", 0.1) : 0.1;
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File file = BridgeTracer.start(new File(getActivity().getFilesDir(), "spark"), sampleRate);
+                    callbackContext.success(file.getAbsolutePath());
+                } catch (Exception e) {
+                    Log.e(TAG, "traceStart: Failed", e);
+                    callbackContext.error(e.toString());
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The JS Monitor reports when it got and handled traced events, as an
+     * array of [id, receivedTime, handledTime] for each event.
+     */
+    private boolean traceReport(JSONArray args) throws JSONException {
+        JSONArray reports = args.getJSONArray(0);
+        for (int i = 0; i < reports.length(); ++i) {
+            JSONArray report = reports.getJSONArray(i);
+            BridgeTracer.onHandled(report.getLong(0), report.getDouble(1), report.getDouble(2));
+        }
+        return true;
+    }
+
+    private boolean getStats(final CallbackContext callbackContext) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject stats = new JSONObject();
+                    stats.put("calls", mCallSetupTracker.getStats());
+                    stats.put("messageFilter", mMessageFilter.getStats());
+                    stats.put("searchIndexSize", mSearchIndex.size());
+                    stats.put("outboundScheduler", mOutboundScheduler.getStats());
+                    stats.put("subscriptions", mSubscriptions.getStats());
+                    callbackContext.success(stats);
+                } catch (JSONException je) {
+                    Log.e(TAG, "getStats: Failed", je);
+                    callbackContext.error(je.toString());
+                }
+            }
+        });
         return true;
     }
 
@@ -449,20 +1260,13 @@ public class SparkProxy extends CordovaPlugin {
             @Override
             public void run() {
                 try {
-                    String eventPropertyAsString = eventProperty.toString();
-
-                    HashMap<String, JSONObject> propertiesToProxy = mGlobalsToProxy.get(eventKey);
-                    if (propertiesToProxy == null) {
-                        propertiesToProxy = new HashMap<String, JSONObject>();
-                        mGlobalsToProxy.put(eventKey, propertiesToProxy);
-                    }
-                    if(!propertiesToProxy.containsKey(eventPropertyAsString)) {
-                        propertiesToProxy.put(eventPropertyAsString, eventProperty);
+                    if (mSubscriptions.observe(eventKey, eventProperty)) {
+                        updateMessageFilter();
                         //ask core to send this property
                         //TODO: Could allow option to do bulk request for multiple in same list
                         sendRequestList(eventKey, eventProperty);
                     } else {
-                        Log.w(TAG, "observeValue: ignoring repeat call for property=" + eventPropertyAsString);
+                        Log.w(TAG, "observeValue: sharing subscription for repeat call for property=" + eventProperty);
                     }
                 } catch (Exception e) {
                     Log.e(TAG, "observeValue: Failed", e);
@@ -481,9 +1285,22 @@ public class SparkProxy extends CordovaPlugin {
                 try {
                     String eventPropertyAsString = eventProperty.toString();
 
-                    HashMap<String, JSONObject> propertiesToProxy = mGlobalsToProxy.get(eventKey);
-                    if(propertiesToProxy != null && propertiesToProxy.containsKey(eventPropertyAsString)) {
-                        propertiesToProxy.remove(eventPropertyAsString);
+                    if (mSubscriptions.release(eventKey, eventProperty)) {
+                        String key = SubscriptionRegistry.canonicalKey(eventProperty);
+                        SubscriptionRegistry.Subscription subscription = mSubscriptions.get(eventKey, key);
+                        if (subscription == null) {
+                            mThrottler.remove(eventKey, eventPropertyAsString);
+                            if (mSubscriptions.isReleased(eventKey, key)) {
+                                //the delivered value is kept while cached, the JS Monitor keeps its copy until told it was evicted
+                                callbackContext.success("cached");
+                            } else {
+                                mDeliveredValues.remove(eventKey, key);
+                            }
+                        } else if (!Arrays.asList(subscription.getAliases()).contains(eventPropertyAsString)) {
+                            //other observers still share the subscription with a different property order
+                            mThrottler.remove(eventKey, eventPropertyAsString);
+                        }
+                        updateMessageFilter();
                     } else {
                         Log.w(TAG, "observeValueStop: ignoring call for property=" + eventPropertyAsString);
                     }
@@ -495,39 +1312,106 @@ public class SparkProxy extends CordovaPlugin {
         });
     }
 
+    /**
+     * Drop what was kept for a subscription that was dropped or evicted from mSubscriptions.
+     */
+    private void forgetSubscription(final SubscriptionRegistry.Subscription subscription) {
+        mDeliveredValues.remove(subscription.listName, subscription.getKey());
+        for (String alias : subscription.getAliases()) {
+            mThrottler.remove(subscription.listName, alias);
+        }
+    }
+
+    //must be called on the main thread after mListsToProxy, mSubscriptions or what the
+    //chat lists are used for natively change
+    private void updateMessageFilter() {
+        HashSet<String> lists = new HashSet<String>(mListsToProxy);
+        //the lists used natively, only while something needs them
+        if (mChatMessageStore != null || mSearchIndexUsed || mChatAggregates.isObserved()) {
+            lists.add("chatMessage");
+        }
+        if (mChatAggregates.isObserved()) {
+            lists.add("chat");
+        }
+        lists.addAll(mSubscriptions.getListNames());
+        mMessageFilter.setLists(lists);
+    }
+
     //JS code should avoid triggering this multiple times for same value
     private void sendRequestList(final String eventKey, final JSONObject eventProperty) throws JSONException {
         Log.d(TAG, "sendRequestList: will request from core... eventKey=" + eventKey +" eventProperty="+eventProperty);
 
-        ProtocolMessage message;
-        if (eventProperty != null) {
-            message = new ProtocolMessage("requestListElements", new JSONObject());
-            JSONArray elements = new JSONArray();
-            elements.put(eventProperty);
-            message.getData().put("elements", elements);
-            String cookie = UUID.randomUUID().toString();
-            message.getData().put("cookie", cookie);
-        } else {
-            message = new ProtocolMessage("requestListAll", new JSONObject());
+        if (eventProperty == null) {
+            //a list the app just started observing, so it is about to show it
+            sendRequestListAll(eventKey, OutboundScheduler.Priority.VISIBLE, true);
+            return;
         }
+
+        ProtocolMessage message = new ProtocolMessage("requestListElements", new JSONObject());
+        JSONArray elements = new JSONArray();
+        elements.put(eventProperty);
+        message.getData().put("elements", elements);
+        String cookie = UUID.randomUUID().toString();
+        message.getData().put("cookie", cookie);
         message.getData().put("type", eventKey);
 
         Log.d(TAG, "sendRequestList: about to send message="+message);
 
-        BBMEnterprise.getInstance().getBbmdsProtocolConnector().send(message);
+        //an element the app is about to show
+        sendToCore(OutboundScheduler.Priority.VISIBLE, null, message);
+    }
+
+    /**
+     * Request a whole list. BACKGROUND requests count against the bulk
+     * requests in flight until core answers for the list.
+     *
+     * @param forApp false if the list is only wanted natively, and the answer
+     *               must not be forwarded to the JS app
+     */
+    private void sendRequestListAll(final String listName, final OutboundScheduler.Priority priority, final boolean forApp) throws JSONException {
+        final ProtocolMessage message = new ProtocolMessage("requestListAll", new JSONObject());
+        message.getData().put("type", listName);
+
+        Log.d(TAG, "sendRequestListAll: about to send message=" + message + " priority=" + priority + " forApp=" + forApp);
+
+        String inFlightKey = priority == OutboundScheduler.Priority.BACKGROUND ? OutboundScheduler.requestListAllKey(listName) : null;
+        mOutboundScheduler.schedule(priority, inFlightKey, new Runnable() {
+            @Override
+            public void run() {
+                //recorded as it is sent, since the scheduler can send a later request first
+                synchronized (mListAllRequesters) {
+                    ArrayDeque<Boolean> requesters = mListAllRequesters.get(listName);
+                    if (requesters == null) {
+                        requesters = new ArrayDeque<>();
+                        mListAllRequesters.put(listName, requesters);
+                    }
+                    requesters.add(forApp);
+                }
+                BBMEnterprise.getInstance().getBbmdsProtocolConnector().send(message);
+            }
+        });
     }
 
     // Send a request to mutate a list, either by adding, removing or changing.
     private void sendRequestMutate(final String action, final String key, final JSONArray elements, CallbackContext callbackContextPfinal) throws JSONException {
         Log.d(TAG, "send " + action + ": will request from core... key=" + key +" elements="+elements);
 
+        if (mOutboundQueue.offerMutate(action, key, elements)) {
+            Log.d(TAG, "send " + action + ": offline, holding elements for key=" + key);
+            return;
+        }
+
+        sendMutateMessage(action, key, elements);
+    }
+
+    private void sendMutateMessage(final String action, final String key, final JSONArray elements) throws JSONException {
         ProtocolMessage message = new ProtocolMessage(action, new JSONObject());
         message.getData().put("elements", elements);
         message.getData().put("type", key);
 
         Log.d(TAG, "sendRequestList: about to send message="+message);
 
-        BBMEnterprise.getInstance().getBbmdsProtocolConnector().send(message);
+        sendToCore(OutboundScheduler.Priority.USER, null, message);
     }
 
     public void observeSparkState(final String eventKey, final JSONObject eventProperty, final CallbackContext callbackContext) {
@@ -607,6 +1491,102 @@ public class SparkProxy extends CordovaPlugin {
         });
     }
 
+    private void observeConnectionState(final JSONObject eventProperty, final CallbackContext callbackContext) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mConnectionStateProperty = eventProperty;
+                    sendConnectionState();
+                    callbackContext.success("SUCCESS: observing Spark." + eventProperty);
+                } catch (Exception e) {
+                    Log.e(TAG, "observeConnectionState: Failed", e);
+                    callbackContext.error(e.toString());
+                }
+            }
+        });
+    }
+
+    private void observeConnectionStateStop(final JSONObject eventProperty, final CallbackContext callbackContext) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionStateProperty = null;
+                callbackContext.success("SUCCESS: stop observing Spark." + eventProperty);
+            }
+        });
+    }
+
+    //must be called on the main thread
+    private void sendConnectionState() throws JSONException {
+        if (mConnectionStateProperty != null) {
+            String state = !mOutboundQueue.isStateKnown() ? "Unknown" : mOutboundQueue.isOnline() ? "Online" : "Offline";
+            CordovaHelper.sendChangedEvent("Spark", mConnectionStateProperty, state);
+        }
+    }
+
+    private void onConnectionStatusChanged(final BBMEnterpriseNetworkState state) {
+        //the SDK only reports connected or not, any other value is treated as offline
+        final boolean online = state == BBMEnterpriseNetworkState.CONNECTED;
+        Log.d(TAG, "onConnectionStatusChanged: state=" + state + " online=" + online);
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOutboundQueue.setOnline(online)) {
+                    try {
+                        sendConnectionState();
+                    } catch (JSONException je) {
+                        Log.e(TAG, "onConnectionStatusChanged: failed to send event", je);
+                    }
+                }
+            }
+        });
+    }
+
+    private void observeAggregate(final JSONObject eventProperty, final CallbackContext callbackContext) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mChatAggregates.observe(eventProperty);
+                    updateMessageFilter();
+                    callbackContext.success("SUCCESS: observing " + ChatAggregates.EVENT_KEY + "." + eventProperty);
+                } catch (Exception e) {
+                    Log.e(TAG, "observeAggregate: Failed", e);
+                    callbackContext.error(e.toString());
+                }
+            }
+        });
+    }
+
+    private void observeAggregateStop(final JSONObject eventProperty) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mChatAggregates.observeStop(eventProperty);
+                updateMessageFilter();
+            }
+        });
+    }
+
+    private void updateChatAggregates(final String listName, final String type, final JSONArray elements) {
+        mMainHandler.post(BridgeTracer.wrap(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if ("chat".equals(listName)) {
+                        mChatAggregates.updateChats(type, elements);
+                    } else {
+                        mChatAggregates.update(type, elements);
+                    }
+                } catch (JSONException je) {
+                    Log.e(TAG, "updateChatAggregates: failed for type=" + type, je);
+                }
+            }
+        }));
+    }
+
     public void observeList(final String eventKey, final CallbackContext callbackContext) {
         Log.d(TAG, "observeList: eventKey=" + eventKey);
 
@@ -619,6 +1599,7 @@ public class SparkProxy extends CordovaPlugin {
                         // knows to proxy the list messages
                         // for this type to the JS side
                         mListsToProxy.add(eventKey);
+                        updateMessageFilter();
 
                         sendRequestList(eventKey, null);
                     } else {
@@ -642,6 +1623,10 @@ public class SparkProxy extends CordovaPlugin {
                 try {
                     if (mListsToProxy.contains(eventKey)) {
                         mListsToProxy.remove(eventKey);
+                        mListResyncs.remove(eventKey);
+                        mDeliveredValues.removeList(eventKey);
+                        mThrottler.removeList(eventKey);
+                        updateMessageFilter();
                     } else {
                         Log.w(TAG, "SparkProxy: observeListStop: ignoring call for List not found eventKey=" + eventKey);
                     }
@@ -658,6 +1643,8 @@ public class SparkProxy extends CordovaPlugin {
         String domain = args.getString(0);
         String environment = args.getString(1);
         String appName = args.getString(2);
+        mWarmUpCalls = args.optBoolean(3, false);
+        final boolean storeChatMessages = args.optBoolean(4, false);
 
         // Parse the environment.
         boolean sandbox;
@@ -677,6 +1664,8 @@ public class SparkProxy extends CordovaPlugin {
             @Override
             public void run() {
                 try {
+                    setChatMessageStoreEnabled(storeChatMessages);
+
                     Log.d(TAG, "start: calling BBMEnterprise.getInstance().initialize...");
                     Bundle bundle = new Bundle();
 
@@ -685,7 +1674,6 @@ public class SparkProxy extends CordovaPlugin {
 
                     BBMEnterprise.getInstance().initialize(getActivity(),
 
-                        //TODO: some of these callbacks could result in events sent to JS
                         new BBMEnterpriseCallback() {
                         @Override
                         public void onNetworkChanged(int type) {
@@ -697,6 +1685,7 @@ public class SparkProxy extends CordovaPlugin {
 
                         @Override
                         public void onConnectionStatusChanged(BBMEnterpriseNetworkState stat) {
+                            SparkProxy.this.onConnectionStatusChanged(stat);
                         }
 
                         @Override
@@ -705,10 +1694,12 @@ public class SparkProxy extends CordovaPlugin {
 
                         @Override
                         public void onStarted() {
+                            warmUpCalls();
                         }
 
                         @Override
                         public void onStopped(boolean fatalError) {
+                            onSessionEnded();
                         }
                     }, bundle);
 
@@ -723,6 +1714,54 @@ public class SparkProxy extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * Open the chat message store if the JS app opted in, otherwise close it
+     * and delete anything stored before. Must be called on the main thread.
+     */
+    private void setChatMessageStoreEnabled(final boolean enabled) {
+        File directory = new File(getActivity().getFilesDir(), "spark");
+        if (enabled) {
+            if (mChatMessageStore == null) {
+                mChatMessageStore = new ChatMessageStore(directory);
+                updateMessageFilter();
+            }
+            return;
+        }
+
+        if (mChatMessageStore != null) {
+            //closed after the pending writes, and before the files are deleted
+            mChatMessageStore.close();
+            mChatMessageStore = null;
+            updateMessageFilter();
+        }
+        ChatMessageStore.deleteFiles(directory);
+    }
+
+    /**
+     * Called when BBM Enterprise stops, such as on sign out, wipe or a user
+     * switch. Nothing from the session is kept on disk or in the search index,
+     * and messages held while offline are not sent for the next user. This
+     * isn't called when the app exits, so the stored chat messages are still
+     * there on the next cold start.
+     */
+    private void onSessionEnded() {
+        mOutboundQueue.clear();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mChatMessageStore != null) {
+                    mChatMessageStore.clear();
+                }
+                mSearchIndex.clear();
+                try {
+                    mChatAggregates.reset(false);
+                } catch (JSONException je) {
+                    Log.e(TAG, "onSessionEnded: failed to reset aggregates", je);
+                }
+            }
+        });
+    }
+
     private Activity getActivity() {
         return cordova.getActivity();
     }
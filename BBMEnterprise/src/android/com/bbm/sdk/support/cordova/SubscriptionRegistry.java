@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bbm.sdk.support.cordova;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+/**
+ * The list elements the JS app observes, by list name.
+ *
+ * Each subscription is keyed by its properties with the names sorted, so the
+ * same properties sent by the JS app in a different order share one
+ * subscription. The properties are kept as arrays of names and values rather
+ * than a JSONObject. The JSON the JS app used for each order is kept with a
+ * reference count, since events must be sent back with the exact properties
+ * the JS app observed, and the subscription is removed once nothing references
+ * it.
+ *
+ * A subscription the JS app still references is never dropped, since its
+ * handlers would silently stop getting events. Past MAX_SUBSCRIPTIONS a
+ * warning with the largest lists is logged, so an app that never stops
+ * observing can be found.
+ *
+ * Once the JS app released every reference, by observeStop, the subscription
+ * is no longer matched but is kept in a cache of released subscriptions, so
+ * observing it again soon can start from the value the JS app last got. The
+ * cache holds at most MAX_RELEASED subscriptions and evicts the one released
+ * longest ago, which the EvictionListener is told about so the JS app can drop
+ * its own copy of the value. clear drops everything when the JS app is reset.
+ *
+ * Changes are made on the main thread. Lookups can be done from any thread.
+ */
+public class SubscriptionRegistry {
+    private static final String TAG = "SubscriptionRegistry";
+
+    static final int MAX_SUBSCRIPTIONS = 4096;
+
+    //released subscriptions kept for when they are observed again
+    static final int MAX_RELEASED = 512;
+
+    /**
+     * Told about released subscriptions dropped from the cache, called on the
+     * thread that made the change, outside the registry lock.
+     */
+    public interface EvictionListener {
+        void onEvicted(Subscription subscription);
+    }
+
+    private static final Subscription[] NONE = new Subscription[0];
+
+    /**
+     * One observed element of a list.
+     */
+    public static class Subscription {
+        final String listName;
+        final String key;
+        //sorted property names and the value of each
+        private final String[] mNames;
+        private final Object[] mValues;
+
+        //the JSON of the properties as the JS app sent them, and how many times each was observed
+        private volatile String[] mAliases = new String[0];
+        private int[] mReferences = new int[0];
+        //the alias whose release moved the subscription to the released cache
+        private volatile String mReleasedAlias;
+
+        Subscription(final String listName, final String key, final String[] names, final Object[] values) {
+            this.listName = listName;
+            this.key = key;
+            mNames = names;
+            mValues = values;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the properties as each JS app observer sent them
+         */
+        public String[] getAliases() {
+            return mAliases;
+        }
+
+        /**
+         * @return the properties of the last observer, while the subscription
+         * is released
+         */
+        public String getReleasedAlias() {
+            return mReleasedAlias;
+        }
+
+        /**
+         * @return true if every property has the same value in object.
+         */
+        public boolean matches(final JSONObject object) {
+            for (int i = 0; i < mNames.length; ++i) {
+                if (!object.optString(mNames[i]).equals(mValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the properties to request the element from core with
+         */
+        public JSONObject toJSON() throws JSONException {
+            JSONObject properties = new JSONObject();
+            for (int i = 0; i < mNames.length; ++i) {
+                properties.put(mNames[i], mValues[i]);
+            }
+            return properties;
+        }
+
+        //must hold the registry lock
+        private boolean addReference(final String alias) {
+            int index = Arrays.asList(mAliases).indexOf(alias);
+            if (index >= 0) {
+                ++mReferences[index];
+                return false;
+            }
+            String[] aliases = Arrays.copyOf(mAliases, mAliases.length + 1);
+            aliases[mAliases.length] = alias;
+            mReferences = Arrays.copyOf(mReferences, mReferences.length + 1);
+            mReferences[mAliases.length] = 1;
+            mAliases = aliases;
+            return true;
+        }
+
+        //must hold the registry lock
+        private boolean removeReference(final String alias) {
+            int index = Arrays.asList(mAliases).indexOf(alias);
+            if (index < 0) {
+                return false;
+            }
+            if (--mReferences[index] == 0) {
+                String[] aliases = new String[mAliases.length - 1];
+                int[] references = new int[aliases.length];
+                for (int i = 0, j = 0; i < mAliases.length; ++i) {
+                    if (i != index) {
+                        aliases[j] = mAliases[i];
+                        references[j++] = mReferences[i];
+                    }
+                }
+                mReferences = references;
+                mAliases = aliases;
+            }
+            return true;
+        }
+    }
+
+    //list name -> key -> subscription
+    private final HashMap<String, HashMap<String, Subscription>> mLists = new HashMap<>();
+
+    //list name -> the subscriptions of the list, rebuilt when the list changes
+    private final HashMap<String, Subscription[]> mSnapshots = new HashMap<>();
+
+    //list name + key -> released subscription, the one released longest ago first
+    private final LinkedHashMap<String, Subscription> mReleased = new LinkedHashMap<>();
+
+    private final EvictionListener mListener;
+
+    private int mSize;
+    private int mMaxSize;
+    private long mCleared;
+    private long mEvicted;
+    private long mRevived;
+
+    public SubscriptionRegistry(final EvictionListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add a reference to the subscription for property, creating it if needed.
+     *
+     * @return true if property was not observed with this JSON before, so
+     * the element should be requested from core to give the observer its
+     * current value.
+     */
+    public synchronized boolean observe(final String listName, final JSONObject property) throws JSONException {
+        String key = canonicalKey(property);
+        HashMap<String, Subscription> subscriptions = mLists.get(listName);
+        Subscription subscription = subscriptions != null ? subscriptions.get(key) : null;
+        if (subscription == null) {
+            //observed again while still cached
+            subscription = mReleased.remove(releasedKey(listName, key));
+            if (subscription != null) {
+                subscription.mReleasedAlias = null;
+                ++mRevived;
+                add(subscription);
+            }
+        }
+        if (subscription == null) {
+            String[] names = new String[property.length()];
+            int i = 0;
+            for (Iterator<String> iter = property.keys(); iter.hasNext(); ) {
+                //the same few property names are used by every subscription
+                names[i++] = iter.next().intern();
+            }
+            Arrays.sort(names);
+            Object[] values = new Object[names.length];
+            for (i = 0; i < names.length; ++i) {
+                values[i] = property.get(names[i]);
+            }
+
+            subscription = new Subscription(listName, key, names, values);
+            add(subscription);
+        }
+        return subscription.addReference(property.toString());
+    }
+
+    /**
+     * Remove a reference added by observe. The subscription moves to the
+     * released cache once nothing references it, which can evict the one
+     * released longest ago.
+     *
+     * @return false if property wasn't observed
+     */
+    public boolean release(final String listName, final JSONObject property) throws JSONException {
+        String key = canonicalKey(property);
+        Subscription evicted = null;
+        synchronized (this) {
+            HashMap<String, Subscription> subscriptions = mLists.get(listName);
+            Subscription subscription = subscriptions != null ? subscriptions.get(key) : null;
+            String alias = property.toString();
+            if (subscription == null || !subscription.removeReference(alias)) {
+                return false;
+            }
+
+            if (subscription.getAliases().length == 0) {
+                remove(subscription);
+                subscription.mReleasedAlias = alias;
+                mReleased.put(releasedKey(listName, key), subscription);
+                if (mReleased.size() > MAX_RELEASED) {
+                    Iterator<Subscription> iter = mReleased.values().iterator();
+                    evicted = iter.next();
+                    iter.remove();
+                    ++mEvicted;
+                }
+            }
+        }
+
+        if (evicted != null) {
+            mListener.onEvicted(evicted);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the subscription is in the released cache
+     */
+    public synchronized boolean isReleased(final String listName, final String key) {
+        return mReleased.containsKey(releasedKey(listName, key));
+    }
+
+    /**
+     * Evict every released subscription, such as when core resyncs and the
+     * values the JS app last got may no longer be current. The
+     * EvictionListener is told about each.
+     */
+    public void evictReleased() {
+        ArrayList<Subscription> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(mReleased.values());
+            mReleased.clear();
+            mEvicted += evicted.size();
+        }
+        Log.i(TAG, "evictReleased: evicted=" + evicted.size());
+        for (Subscription subscription : evicted) {
+            mListener.onEvicted(subscription);
+        }
+    }
+
+    /**
+     * @return the subscriptions of a list, which must not be modified
+     */
+    public synchronized Subscription[] get(final String listName) {
+        Subscription[] snapshot = mSnapshots.get(listName);
+        if (snapshot == null) {
+            HashMap<String, Subscription> subscriptions = mLists.get(listName);
+            snapshot = subscriptions != null ? subscriptions.values().toArray(new Subscription[subscriptions.size()]) : NONE;
+            mSnapshots.put(listName, snapshot);
+        }
+        return snapshot;
+    }
+
+    public synchronized Subscription get(final String listName, final String key) {
+        HashMap<String, Subscription> subscriptions = mLists.get(listName);
+        return subscriptions != null ? subscriptions.get(key) : null;
+    }
+
+    /**
+     * @return the names of the lists with subscriptions
+     */
+    public synchronized Set<String> getListNames() {
+        return Collections.unmodifiableSet(new HashSet<>(mLists.keySet()));
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Drop every subscription, such as when the JS app is reloaded and
+     * nothing it observed is referenced any more. The EvictionListener isn't
+     * told, the JS app has nothing left to drop.
+     *
+     * @return the dropped subscriptions, including the released ones
+     */
+    public synchronized List<Subscription> clear() {
+        ArrayList<Subscription> released = new ArrayList<>(mSize + mReleased.size());
+        for (HashMap<String, Subscription> subscriptions : mLists.values()) {
+            released.addAll(subscriptions.values());
+        }
+        released.addAll(mReleased.values());
+        mLists.clear();
+        mSnapshots.clear();
+        mReleased.clear();
+        mSize = 0;
+        mCleared += released.size();
+        Log.i(TAG, "clear: released=" + released.size());
+        return released;
+    }
+
+    public synchronized JSONObject getStats() throws JSONException {
+        int aliases = 0;
+        int references = 0;
+        for (HashMap<String, Subscription> subscriptions : mLists.values()) {
+            for (Subscription subscription : subscriptions.values()) {
+                aliases += subscription.mAliases.length;
+                for (int count : subscription.mReferences) {
+                    references += count;
+                }
+            }
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("size", mSize);
+        stats.put("lists", mLists.size());
+        stats.put("aliases", aliases);
+        stats.put("references", references);
+        stats.put("maxSize", mMaxSize);
+        stats.put("cleared", mCleared);
+        stats.put("released", mReleased.size());
+        stats.put("evicted", mEvicted);
+        stats.put("revived", mRevived);
+        return stats;
+    }
+
+    //must hold the lock
+    private void logLargestLists() {
+        ArrayList<String> listNames = new ArrayList<>(mLists.keySet());
+        Collections.sort(listNames, new Comparator<String>() {
+            @Override
+            public int compare(final String first, final String second) {
+                return Integer.compare(mLists.get(second).size(), mLists.get(first).size());
+            }
+        });
+
+        StringBuilder largest = new StringBuilder();
+        for (String listName : listNames.subList(0, Math.min(3, listNames.size()))) {
+            largest.append(' ').append(listName).append('=').append(mLists.get(listName).size());
+        }
+        Log.w(TAG, "observe: " + mSize + " subscriptions are observed, more than " + MAX_SUBSCRIPTIONS
+                + ", is the JS app stopping its observers? largest:" + largest);
+    }
+
+    //must hold the lock
+    private void add(final Subscription subscription) {
+        HashMap<String, Subscription> subscriptions = mLists.get(subscription.listName);
+        if (subscriptions == null) {
+            subscriptions = new HashMap<>();
+            mLists.put(subscription.listName, subscriptions);
+        }
+        subscriptions.put(subscription.key, subscription);
+        mSnapshots.remove(subscription.listName);
+        ++mSize;
+        mMaxSize = Math.max(mMaxSize, mSize);
+        if (mSize == MAX_SUBSCRIPTIONS + 1) {
+            logLargestLists();
+        }
+    }
+
+    private static String releasedKey(final String listName, final String key) {
+        return listName + '\u0000' + key;
+    }
+
+    //must hold the lock
+    private void remove(final Subscription subscription) {
+        HashMap<String, Subscription> subscriptions = mLists.get(subscription.listName);
+        if (subscriptions != null && subscriptions.remove(subscription.key) != null) {
+            --mSize;
+            mSnapshots.remove(subscription.listName);
+            if (subscriptions.isEmpty()) {
+                mLists.remove(subscription.listName);
+            }
+        }
+    }
+
+    /**
+     * @return the JSON of properties with the names of every object sorted
+     */
+    public static String canonicalKey(final JSONObject properties) throws JSONException {
+        JSONStringer stringer = new JSONStringer();
+        writeCanonical(stringer, properties);
+        return stringer.toString();
+    }
+
+    private static void writeCanonical(final JSONStringer stringer, final JSONObject object) throws JSONException {
+        String[] names = new String[object.length()];
+        int i = 0;
+        for (Iterator<String> iter = object.keys(); iter.hasNext(); ) {
+            names[i++] = iter.next();
+        }
+        Arrays.sort(names);
+
+        stringer.object();
+        for (String name : names) {
+            stringer.key(name);
+            writeCanonicalValue(stringer, object.get(name));
+        }
+        stringer.endObject();
+    }
+
+    //the order of array elements is kept, only the names of the objects in them are sorted
+    private static void writeCanonicalValue(final JSONStringer stringer, final Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            writeCanonical(stringer, (JSONObject)value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            stringer.array();
+            for (int i = 0; i < array.length(); ++i) {
+                writeCanonicalValue(stringer, array.get(i));
+            }
+            stringer.endArray();
+        } else {
+            stringer.value(value);
+        }
+    }
+}
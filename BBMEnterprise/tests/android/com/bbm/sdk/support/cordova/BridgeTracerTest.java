@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bbm.sdk.service.ProtocolMessage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BridgeTracerTest {
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("BridgeTracerTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        BridgeTracer.end();
+        BridgeTracer.stop();
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    //stop closes the file on the writer thread
+    private static String readClosed(final File file) throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            String trace = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            if (trace.endsWith("]\n")) {
+                return trace;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("trace file not closed: " + file);
+    }
+
+    @Test
+    public void keepsNewestTraceFiles() throws Exception {
+        for (int i = 1; i <= 7; ++i) {
+            assertTrue(new File(mDirectory, "trace-" + i + "000.json").createNewFile());
+        }
+        assertTrue(new File(mDirectory, "notes.txt").createNewFile());
+
+        File trace = BridgeTracer.start(mDirectory, 0);
+        BridgeTracer.stop();
+
+        assertTrue(trace.exists());
+        assertTrue(new File(mDirectory, "notes.txt").exists());
+        assertEquals(BridgeTracer.MAX_TRACE_FILES + 1, mDirectory.list().length);
+        for (int i = 1; i <= 3; ++i) {
+            assertFalse(new File(mDirectory, "trace-" + i + "000.json").exists());
+        }
+        for (int i = 4; i <= 7; ++i) {
+            assertTrue(new File(mDirectory, "trace-" + i + "000.json").exists());
+        }
+    }
+
+    @Test
+    public void recordsQueueStageForEveryEvent() throws Exception {
+        File file = BridgeTracer.start(mDirectory, 1);
+        BridgeTracer.begin(new ProtocolMessage("listChange", new JSONObject().put("type", "chat")));
+        assertTrue(BridgeTracer.isTracing());
+
+        BridgeTracer.Event direct = BridgeTracer.onDequeue("chat");
+        BridgeTracer.onSerialized(direct);
+        BridgeTracer.onSent(direct);
+
+        final BridgeTracer.Event[] posted = new BridgeTracer.Event[1];
+        Thread main = new Thread(BridgeTracer.wrap(new Runnable() {
+            @Override
+            public void run() {
+                posted[0] = BridgeTracer.onDequeue("chatMessage");
+                BridgeTracer.onSerialized(posted[0]);
+                BridgeTracer.onSent(posted[0]);
+            }
+        }));
+        Thread.sleep(5);
+        main.start();
+        main.join();
+        BridgeTracer.end();
+        assertFalse(BridgeTracer.isTracing());
+        assertNotNull(posted[0]);
+
+        long now = System.currentTimeMillis();
+        BridgeTracer.onHandled(direct.getId(), now, now);
+        BridgeTracer.onHandled(posted[0].getId(), now, now);
+        BridgeTracer.stop();
+
+        JSONArray slices = new JSONArray(readClosed(file));
+        int queues = 0;
+        for (int i = 0; i < slices.length(); ++i) {
+            JSONObject slice = slices.getJSONObject(i);
+            if ("queue".equals(slice.getString("name"))) {
+                ++queues;
+                JSONObject args = slice.getJSONObject("args");
+                if (args.getLong("id") == direct.getId()) {
+                    assertFalse(args.getBoolean("queued"));
+                    assertEquals(0, slice.getLong("dur"));
+                } else {
+                    assertTrue(args.getBoolean("queued"));
+                    assertTrue(slice.getLong("dur") >= 5000);
+                }
+            }
+        }
+        assertEquals(2, queues);
+    }
+
+    @Test
+    public void tracesNothingUnsampled() throws Exception {
+        BridgeTracer.start(mDirectory, 0);
+        BridgeTracer.begin(new ProtocolMessage("listChange", new JSONObject().put("type", "chat")));
+        assertFalse(BridgeTracer.isTracing());
+        assertNull(BridgeTracer.onDequeue("chat"));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Measures how long ChatMessageSearchIndex takes to index messages and to
+ * search them, compared with scanning the content of every message, and how
+ * much heap the index uses. Run it on its own with the message count and chat
+ * count, such as 20000 20. Messages are made of words from a vocabulary of
+ * 20000 where a few words are much more common than the rest.
+ */
+public class ChatMessageSearchIndexBenchmark {
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int SEARCHES = 20;
+
+    private static final String[] WORDS = new String[VOCABULARY_SIZE];
+    static {
+        Random random = new Random(1);
+        for (int i = 0; i < WORDS.length; ++i) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(7);
+            for (int j = 0; j < length; ++j) {
+                word.append((char)('a' + random.nextInt(26)));
+            }
+            WORDS[i] = word.toString();
+        }
+    }
+
+    private static String word(final Random random) {
+        return WORDS[(int)Math.min(WORDS.length - 1, Math.abs(random.nextGaussian()) * 2000)];
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //what searching without the index costs, all terms must be in the content
+    private static int scan(final ArrayList<String> contents, final String[] terms) {
+        int matches = 0;
+        for (String content : contents) {
+            String lowerCase = content.toLowerCase(Locale.ROOT);
+            boolean match = true;
+            for (int t = 0; t < terms.length && match; ++t) {
+                match = lowerCase.contains(terms[t]);
+            }
+            if (match) {
+                ++matches;
+            }
+        }
+        return matches;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : ChatMessageSearchIndex.MAX_DOCUMENTS;
+        int chatCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        long baseHeap = usedHeap();
+        ChatMessageSearchIndex index = new ChatMessageSearchIndex(new ChatMessageSearchIndex.Sender() {
+            @Override
+            public void requestChat(String chatId, String cookie) {
+            }
+
+            @Override
+            public void requestChatMessages(JSONArray elements, String cookie) {
+            }
+        });
+
+        Random random = new Random(2);
+        ArrayList<String> contents = new ArrayList<>(messageCount);
+        long startTime = System.nanoTime();
+        for (int first = 0; first < messageCount; first += 50) {
+            JSONArray elements = new JSONArray();
+            for (int i = first; i < Math.min(messageCount, first + 50); ++i) {
+                StringBuilder content = new StringBuilder();
+                int words = 5 + random.nextInt(20);
+                for (int w = 0; w < words; ++w) {
+                    content.append(word(random)).append(' ');
+                }
+                contents.add(content.toString());
+
+                JSONObject element = new JSONObject();
+                element.put("chatId", Integer.toString(random.nextInt(chatCount)));
+                element.put("messageId", Integer.toString(i + 1));
+                element.put("content", content.toString());
+                elements.put(element);
+            }
+            index.update("listAdd", elements);
+        }
+        index.waitForPending();
+        long indexTime = System.nanoTime() - startTime;
+        long heap = usedHeap() - baseHeap;
+
+        System.out.printf(Locale.ROOT, "messages=%d chats=%d indexed=%d index=%.1fus/message heap=%.1fMB (includes the scan copy)%n",
+                messageCount, chatCount, index.size(), indexTime / 1e3 / messageCount, heap / 1048576.0);
+
+        String[] queries = {WORDS[0], WORDS[0] + " " + WORDS[1], WORDS[50], WORDS[5] + " " + WORDS[300], WORDS[1500]};
+        for (String query : queries) {
+            String[] terms = query.split(" ");
+            int total = 0;
+            for (int i = 0; i < 5; ++i) {
+                total = index.search(query, null, 0, 20).getInt("total");
+                scan(contents, terms);
+            }
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < SEARCHES; ++i) {
+                index.search(query, null, 0, 20);
+            }
+            long searchTime = (System.nanoTime() - startTime) / SEARCHES;
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < SEARCHES; ++i) {
+                scan(contents, terms);
+            }
+            long scanTime = (System.nanoTime() - startTime) / SEARCHES;
+
+            System.out.printf(Locale.ROOT, "  %-22s matches=%-6d search=%.2fms scan=%.2fms%n",
+                    "\"" + query + "\"", total, searchTime / 1e6, scanTime / 1e6);
+        }
+        index.close();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChatMessageSearchIndexTest {
+    //the requests the index sent, as cookie and elements
+    private final ArrayList<String> mCookies = new ArrayList<>();
+    private final ArrayList<JSONArray> mRequests = new ArrayList<>();
+    private ChatMessageSearchIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new ChatMessageSearchIndex(new ChatMessageSearchIndex.Sender() {
+            @Override
+            public void requestChat(String chatId, String cookie) throws JSONException {
+                mCookies.add(cookie);
+                mRequests.add(new JSONArray().put(new JSONObject().put("chatId", chatId)));
+            }
+
+            @Override
+            public void requestChatMessages(JSONArray elements, String cookie) {
+                mCookies.add(cookie);
+                mRequests.add(elements);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mIndex.close();
+    }
+
+    private static JSONObject message(final String chatId, final long messageId, final String content) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("chatId", chatId);
+        message.put("messageId", Long.toString(messageId));
+        if (content != null) {
+            message.put("content", content);
+        }
+        return message;
+    }
+
+    private JSONObject search(final String query, final String chatId) throws Exception {
+        mIndex.waitForPending();
+        JSONObject result = mIndex.search(query, chatId, 0, 20);
+        mIndex.waitForPending();
+        return result;
+    }
+
+    @Test
+    public void findsMessagesWithEveryTerm() throws Exception {
+        mIndex.update("listAdd", new JSONArray()
+                .put(message("1", 1, "Lunch at noon?"))
+                .put(message("1", 2, "lunch is late"))
+                .put(message("2", 1, "Noon works for lunch, noon it is")));
+        JSONObject result = search("LUNCH noon", null);
+        assertEquals(2, result.getInt("total"));
+        JSONObject first = result.getJSONArray("results").getJSONObject(0);
+        //noon occurs twice
+        assertEquals("2", first.getString("chatId"));
+        assertFalse(result.has("complete"));
+    }
+
+    @Test
+    public void pagesResults() throws Exception {
+        JSONArray messages = new JSONArray();
+        for (int i = 1; i <= 30; ++i) {
+            messages.put(message("1", i, "hello"));
+        }
+        mIndex.update("listAdd", messages);
+        mIndex.waitForPending();
+        JSONObject page = mIndex.search("hello", null, 25, 20);
+        assertEquals(30, page.getInt("total"));
+        assertEquals(5, page.getJSONArray("results").length());
+        //newest first for equal scores
+        assertEquals("5", page.getJSONArray("results").getJSONObject(0).getString("messageId"));
+    }
+
+    @Test
+    public void changesAndRemovesMessages() throws Exception {
+        mIndex.update("listAdd", new JSONArray()
+                .put(message("1", 1, "old words"))
+                .put(message("1", 2, "gone soon"))
+                .put(message("1", 3, "deleted soon")));
+        mIndex.update("listChange", new JSONArray().put(message("1", 1, "new words")));
+        mIndex.update("listRemove", new JSONArray().put(message("1", 2, null)));
+        mIndex.update("listChange", new JSONArray().put(message("1", 3, null).put("flags", "D")));
+        assertEquals(0, search("old", null).getInt("total"));
+        assertEquals(1, search("new", null).getInt("total"));
+        assertEquals(0, search("soon", null).getInt("total"));
+        assertEquals(1, mIndex.size());
+    }
+
+    @Test
+    public void dropsLeastRecentlyUpdatedChatsWhole() throws Exception {
+        int perChat = ChatMessageSearchIndex.MAX_DOCUMENTS / 4;
+        for (int chat = 0; chat < 5; ++chat) {
+            JSONArray messages = new JSONArray();
+            for (int i = 1; i <= perChat; ++i) {
+                messages.put(message(Integer.toString(chat), i, "word" + chat));
+            }
+            mIndex.update("listAdd", messages);
+        }
+        mIndex.waitForPending();
+        assertEquals(ChatMessageSearchIndex.MAX_DOCUMENTS, mIndex.size());
+        assertEquals(0, mIndex.search("word0", null, 0, 20).getInt("total"));
+        assertEquals(perChat, mIndex.search("word1", null, 0, 20).getInt("total"));
+        assertEquals(perChat, mIndex.search("word4", null, 0, 20).getInt("total"));
+    }
+
+    @Test
+    public void backfillsSearchedChat() throws Exception {
+        mIndex.update("listAdd", new JSONArray().put(message("1", 250, "find me")));
+        JSONObject result = search("find", "1");
+        assertFalse(result.getBoolean("complete"));
+        assertEquals(1, mCookies.size());
+        assertTrue(mCookies.get(0).startsWith(ChatMessageSearchIndex.COOKIE_PREFIX));
+
+        mIndex.backfillResponse("chat", mCookies.get(0), new JSONArray().put(message("1", 0, null).put("lastMessage", "250")));
+        for (int page = 1; page <= 3; ++page) {
+            mIndex.waitForPending();
+            assertEquals(page + 1, mRequests.size());
+            JSONArray requested = mRequests.get(page);
+            //the message already indexed isn't requested again
+            assertEquals(page < 3 ? ChatMessageSearchIndex.BACKFILL_PAGE_SIZE : 49, requested.length());
+
+            JSONArray messages = new JSONArray();
+            for (int i = 0; i < requested.length(); ++i) {
+                long messageId = Long.parseLong(requested.getJSONObject(i).getString("messageId"));
+                messages.put(message("1", messageId, "find " + messageId));
+            }
+            mIndex.update("listElements", messages);
+            mIndex.backfillResponse("chatMessage", mCookies.get(page), messages);
+        }
+
+        result = search("find", "1");
+        assertTrue(result.getBoolean("complete"));
+        assertEquals(250, result.getInt("total"));
+        assertEquals(4, mRequests.size());
+    }
+
+    @Test
+    public void chatThatDoesNotExistIsComplete() throws Exception {
+        search("find", "1");
+        mIndex.backfillResponse("chat", mCookies.get(0), new JSONArray());
+        assertTrue(search("find", "1").getBoolean("complete"));
+        assertEquals(1, mRequests.size());
+    }
+
+    @Test
+    public void searchesDuringBackfillDontStartAnother() throws Exception {
+        search("find", "1");
+        search("find", "1");
+        assertEquals(1, mRequests.size());
+    }
+
+    @Test
+    public void resetBackfillsIgnoresLateAnswers() throws Exception {
+        search("find", "1");
+        mIndex.resetBackfills();
+        mIndex.backfillResponse("chat", mCookies.get(0), new JSONArray().put(message("1", 0, null).put("lastMessage", "5")));
+        assertFalse(search("find", "1").getBoolean("complete"));
+        //searching again started a new backfill
+        assertEquals(2, mRequests.size());
+    }
+
+    @Test
+    public void ignoresUpdatesOnceClosed() throws Exception {
+        mIndex.close();
+        mIndex.update("listAdd", new JSONArray().put(message("1", 1, "hello")));
+        mIndex.clear();
+        assertEquals(0, mIndex.search("hello", null, 0, 20).getInt("total"));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChatMessageStoreTest {
+    private File mDirectory;
+    private ChatMessageStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("ChatMessageStoreTest").toFile();
+        mStore = new ChatMessageStore(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+        ChatMessageStore.deleteFiles(mDirectory);
+        ChatMessageStore.waitForPending();
+        mDirectory.delete();
+    }
+
+    private static JSONArray messages(final String chatId, final int first, final int count, final String content) throws JSONException {
+        JSONArray messages = new JSONArray();
+        for (int i = first; i < first + count; ++i) {
+            JSONObject message = new JSONObject();
+            message.put("chatId", chatId);
+            message.put("messageId", Integer.toString(i));
+            if (content != null) {
+                message.put("content", content);
+            }
+            messages.put(message);
+        }
+        return messages;
+    }
+
+    private JSONArray recent(final String chatId, final int count) throws Exception {
+        ChatMessageStore.waitForPending();
+        return mStore.getRecent(chatId, count);
+    }
+
+    private File file() {
+        return new File(mDirectory, "chatMessages.log");
+    }
+
+    @Test
+    public void returnsNewestOldestFirst() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 5, "hi"));
+        mStore.update("listAdd", messages("2", 1, 1, "other chat"));
+        JSONArray recent = recent("1", 3);
+        assertEquals(3, recent.length());
+        assertEquals("3", recent.getJSONObject(0).getString("messageId"));
+        assertEquals("5", recent.getJSONObject(2).getString("messageId"));
+    }
+
+    @Test
+    public void appliesChangesAndRemoves() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 2, "hi"));
+        mStore.update("listChange", messages("1", 1, 1, "edited"));
+        mStore.update("listRemove", messages("1", 2, 1, null));
+        //a change to a message that was never stored is not enough to store it
+        mStore.update("listChange", messages("1", 3, 1, "partial"));
+        JSONArray recent = recent("1", 10);
+        assertEquals(1, recent.length());
+        assertEquals("edited", recent.getJSONObject(0).getString("content"));
+    }
+
+    @Test
+    public void keepsNewestMessagesOfChat() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 250, "hi"));
+        JSONArray recent = recent("1", 1000);
+        assertEquals(200, recent.length());
+        assertEquals("51", recent.getJSONObject(0).getString("messageId"));
+    }
+
+    @Test
+    public void loadsWhatWasStored() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 3, "hi"));
+        mStore.update("listRemove", messages("1", 2, 1, null));
+        mStore.close();
+        mStore = new ChatMessageStore(mDirectory);
+        JSONArray recent = recent("1", 10);
+        assertEquals(2, recent.length());
+        assertEquals("3", recent.getJSONObject(1).getString("messageId"));
+    }
+
+    @Test
+    public void closeDropsUnusedMapping() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 1, "hi"));
+        ChatMessageStore.waitForPending();
+        assertTrue(file().length() > 1000);
+        mStore.close();
+        ChatMessageStore.waitForPending();
+        assertTrue(file().length() < 100);
+    }
+
+    @Test
+    public void dropsRecordCutShort() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 2, "hi"));
+        mStore.close();
+        ChatMessageStore.waitForPending();
+        RandomAccessFile file = new RandomAccessFile(file(), "rw");
+        long length = file.length();
+        file.seek(length);
+        file.writeInt(100);
+        file.write(new byte[] {'{', '"'});
+        file.close();
+
+        mStore = new ChatMessageStore(mDirectory);
+        assertEquals(2, recent("1", 10).length());
+        mStore.close();
+        ChatMessageStore.waitForPending();
+        assertEquals(length, file().length());
+    }
+
+    @Test
+    public void compactsStaleRecords() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            content.append('x');
+        }
+        for (int i = 0; i < 1500; ++i) {
+            mStore.update("listAdd", messages("1", 1, 2, content.toString() + i));
+        }
+        JSONArray recent = recent("1", 10);
+        assertEquals(2, recent.length());
+        assertEquals(content.toString() + 1499, recent.getJSONObject(1).getString("content"));
+
+        mStore.close();
+        ChatMessageStore.waitForPending();
+        assertTrue("size=" + file().length(), file().length() < 1024 * 1024);
+        assertFalse(new File(mDirectory, "chatMessages.log.tmp").exists());
+    }
+
+    @Test
+    public void ignoresUpdatesAfterClose() throws Exception {
+        mStore.close();
+        mStore.update("listAdd", messages("1", 1, 1, "hi"));
+        assertEquals(0, recent("1", 10).length());
+    }
+
+    @Test
+    public void clearDeletesMessages() throws Exception {
+        mStore.update("listAdd", messages("1", 1, 3, "hi"));
+        mStore.clear();
+        assertEquals(0, recent("1", 10).length());
+        mStore.update("listAdd", messages("1", 4, 1, "hi"));
+        assertEquals(1, recent("1", 10).length());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DeliveredValueCacheTest {
+    private final DeliveredValueCache mCache = new DeliveredValueCache();
+
+    private static JSONObject chat(final String chatId, final int numUnread) throws JSONException {
+        JSONObject chat = new JSONObject();
+        chat.put("chatId", chatId);
+        chat.put("numUnread", numUnread);
+        return chat;
+    }
+
+    @Test
+    public void keepsDeliveredObject() throws JSONException {
+        JSONObject chat = chat("1", 0);
+        mCache.record("chat", "k", chat, false);
+        assertFalse(mCache.hasChanged("chat", "k", chat("1", 0)));
+        assertTrue(mCache.hasChanged("chat", "k", chat("1", 2)));
+    }
+
+    @Test
+    public void mergeDoesNotChangeDeliveredObject() throws JSONException {
+        JSONObject chat = chat("1", 0);
+        mCache.record("chat", "k", chat, false);
+        mCache.record("chat", "k", new JSONObject().put("numUnread", 3), true);
+        assertEquals(0, chat.getInt("numUnread"));
+        assertFalse(mCache.hasChanged("chat", "k", chat("1", 3)));
+    }
+
+    @Test
+    public void removedValueIsNotAValue() throws JSONException {
+        mCache.record("chat", "k", null, false);
+        assertFalse(mCache.hasValue("chat", "k"));
+        assertTrue(mCache.hasChanged("chat", "k", chat("1", 0)));
+    }
+
+    @Test
+    public void unrecordedListIsForwardedWhole() throws JSONException {
+        assertNull(mCache.diffList("chat", new JSONArray().put(chat("1", 0))));
+        //the listAll was recorded, so the next one is compared
+        assertTrue(mCache.diffList("chat", new JSONArray().put(chat("1", 0))).isEmpty());
+    }
+
+    @Test
+    public void diffsListAll() throws JSONException {
+        mCache.recordList("listAll", "chat", new JSONArray().put(chat("1", 0)).put(chat("2", 0)).put(chat("3", 0)));
+        mCache.recordList("listChange", "chat", new JSONArray().put(new JSONObject().put("chatId", "2").put("numUnread", 4)));
+
+        JSONObject added = chat("4", 0);
+        JSONObject changed = chat("1", 1);
+        DeliveredValueCache.ListDiff diff = mCache.diffList("chat",
+                new JSONArray().put(changed).put(chat("2", 4)).put(added));
+        assertEquals(1, diff.added.length());
+        assertSame(added, diff.added.get(0));
+        assertEquals(1, diff.changed.length());
+        assertSame(changed, diff.changed.get(0));
+        assertEquals(1, diff.removed.length());
+        assertEquals("3", diff.removed.getJSONObject(0).getString("chatId"));
+    }
+
+    @Test
+    public void listRemoveIsRecorded() throws JSONException {
+        mCache.recordList("listAll", "chat", new JSONArray().put(chat("1", 0)).put(chat("2", 0)));
+        mCache.recordList("listRemove", "chat", new JSONArray().put(new JSONObject().put("chatId", "2")));
+        mCache.recordList("listAdd", "chat", new JSONArray().put(chat("5", 0)));
+        DeliveredValueCache.ListDiff diff = mCache.diffList("chat",
+                new JSONArray().put(chat("1", 0)).put(chat("5", 0)));
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    public void listWithoutPrimaryKeyIsForwardedWhole() throws JSONException {
+        mCache.recordList("listAll", "unknownList", new JSONArray().put(new JSONObject().put("a", 1)));
+        assertNull(mCache.diffList("unknownList", new JSONArray()));
+    }
+
+    @Test
+    public void removedListIsForwardedWhole() throws JSONException {
+        mCache.recordList("listAll", "chat", new JSONArray().put(chat("1", 0)));
+        mCache.removeList("chat");
+        assertNull(mCache.diffList("chat", new JSONArray().put(chat("1", 0))));
+    }
+}
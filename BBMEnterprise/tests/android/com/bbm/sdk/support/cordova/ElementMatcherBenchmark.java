@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures ElementMatcher matching a list message and serializing the events
+ * for its matches, serially and on the pool. Run it on its own with the
+ * number of workers, such as 2. Each size is elements x subscriptions, where
+ * every element matches one subscription, as in a listChunk of the initial
+ * sync with every chat observed.
+ *
+ * The serialization is what SparkProxy does for each event, the response
+ * array turned into a string, without the cordova classes.
+ */
+public class ElementMatcherBenchmark {
+    private static final int[][] SIZES = {{256, 1}, {256, 16}, {1024, 16}, {1024, 64}, {4096, 64}};
+    private static final int RUNS = 200;
+
+    private static final ElementMatcher.PayloadBuilder SERIALIZER = new ElementMatcher.PayloadBuilder() {
+        @Override
+        public Object build(SubscriptionRegistry.Subscription subscription, JSONObject object) throws JSONException {
+            return serialize(subscription, object);
+        }
+    };
+
+    private static String serialize(final SubscriptionRegistry.Subscription subscription, final JSONObject object) throws JSONException {
+        String alias = subscription.getAliases()[0];
+        return new JSONArray().put("chat").put(new JSONObject(alias)).put(object).put(false).toString();
+    }
+
+    private static JSONArray chats(final int count, final int chatIds) throws JSONException {
+        JSONArray elements = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            JSONObject chat = new JSONObject();
+            chat.put("chatId", Integer.toString(i % chatIds));
+            chat.put("subject", "chat " + i);
+            chat.put("state", "Ready");
+            chat.put("numMessages", i);
+            chat.put("lastMessage", i * 2);
+            elements.put(chat);
+        }
+        return elements;
+    }
+
+    //the serial path of SparkProxy: match, then serialize each event as it is sent
+    private static long serial(final ElementMatcher matcher, final JSONArray elements,
+                               final SubscriptionRegistry.Subscription[] subscriptions) throws JSONException {
+        long startTime = System.nanoTime();
+        for (ElementMatcher.Match match : matcher.match(elements, subscriptions)) {
+            serialize(match.subscription, match.object);
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static long parallel(final ElementMatcher matcher, final JSONArray elements,
+                                 final SubscriptionRegistry.Subscription[] subscriptions) throws JSONException {
+        long startTime = System.nanoTime();
+        List<ElementMatcher.Match> matches = matcher.match(elements, subscriptions, SERIALIZER);
+        if (!matches.isEmpty() && matches.get(0).payload == null) {
+            throw new IllegalStateException("not matched in parallel");
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static void run(final ElementMatcher serialMatcher, final ElementMatcher parallelMatcher,
+                            final int elementCount, final int subscriptionCount, final boolean print) throws JSONException {
+        SubscriptionRegistry registry = new SubscriptionRegistry(null);
+        for (int i = 0; i < subscriptionCount; ++i) {
+            registry.observe("chat", new JSONObject().put("chatId", Integer.toString(i)));
+        }
+        SubscriptionRegistry.Subscription[] subscriptions = registry.get("chat");
+        JSONArray elements = chats(elementCount, subscriptionCount);
+        boolean pooled = (long)elementCount * subscriptionCount >= ElementMatcher.PARALLEL_THRESHOLD;
+
+        long serialTime = 0;
+        long parallelTime = 0;
+        for (int i = 0; i < RUNS; ++i) {
+            serialTime += serial(serialMatcher, elements, subscriptions);
+            if (pooled) {
+                parallelTime += parallel(parallelMatcher, elements, subscriptions);
+            }
+        }
+
+        if (print) {
+            System.out.printf(Locale.ROOT, "  %5d x %-3d = %7d: serial=%7.1fus %s%n",
+                    elementCount, subscriptionCount, elementCount * subscriptionCount, serialTime / 1e3 / RUNS,
+                    pooled ? String.format(Locale.ROOT, "parallel=%7.1fus", parallelTime / 1e3 / RUNS) : "below threshold");
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        ElementMatcher serialMatcher = new ElementMatcher(1);
+        ElementMatcher parallelMatcher = new ElementMatcher(workers);
+
+        System.out.printf(Locale.ROOT, "cores=%d workers=%d%n", Runtime.getRuntime().availableProcessors(), workers);
+        //the first round only warms up the JIT for every size
+        for (int round = 0; round < 2; ++round) {
+            for (int[] size : SIZES) {
+                run(serialMatcher, parallelMatcher, size[0], size[1], round > 0);
+            }
+        }
+        serialMatcher.shutdown();
+        parallelMatcher.shutdown();
+    }
+}
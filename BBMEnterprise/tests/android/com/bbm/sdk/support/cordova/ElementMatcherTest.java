@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+public class ElementMatcherTest {
+    private final ElementMatcher mSerial = new ElementMatcher(1);
+    private final ElementMatcher mParallel = new ElementMatcher(3);
+    //nothing is released, so nothing is evicted
+    private final SubscriptionRegistry mRegistry = new SubscriptionRegistry(null);
+
+    @After
+    public void shutdown() {
+        mSerial.shutdown();
+        mParallel.shutdown();
+    }
+
+    private static JSONArray chats(final int count) throws JSONException {
+        JSONArray elements = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            elements.put(new JSONObject().put("chatId", Integer.toString(i % 100)).put("subject", "chat " + i));
+        }
+        return elements;
+    }
+
+    //observes chatId 0 to count - 1
+    private SubscriptionRegistry.Subscription[] observe(final int count) throws JSONException {
+        for (int i = 0; i < count; ++i) {
+            mRegistry.observe("chat", new JSONObject().put("chatId", Integer.toString(i)));
+        }
+        return mRegistry.get("chat");
+    }
+
+    private static final ElementMatcher.PayloadBuilder SUBJECT = new ElementMatcher.PayloadBuilder() {
+        @Override
+        public Object build(SubscriptionRegistry.Subscription subscription, JSONObject object) {
+            return subscription.getKey() + ' ' + object.optString("subject");
+        }
+    };
+
+    @Test
+    public void matchesInElementOrder() throws JSONException {
+        JSONArray elements = chats(300);
+        List<ElementMatcher.Match> matches = mSerial.match(elements, observe(2));
+        assertEquals(6, matches.size());
+        int last = -1;
+        for (ElementMatcher.Match match : matches) {
+            assertEquals(match.subscription.toJSON().getString("chatId"), match.object.getString("chatId"));
+            int index = Integer.parseInt(match.object.getString("subject").substring(5));
+            assertTrue(index > last);
+            last = index;
+        }
+    }
+
+    @Test
+    public void parallelMatchesLikeSerial() throws JSONException {
+        JSONArray elements = chats(2000);
+        SubscriptionRegistry.Subscription[] subscriptions = observe(50);
+        assertTrue((long)elements.length() * subscriptions.length >= ElementMatcher.PARALLEL_THRESHOLD);
+
+        List<ElementMatcher.Match> serial = mSerial.match(elements, subscriptions);
+        List<ElementMatcher.Match> parallel = mParallel.match(elements, subscriptions);
+        assertEquals(1000, serial.size());
+        assertEquals(serial.size(), parallel.size());
+        for (int i = 0; i < serial.size(); ++i) {
+            assertSame(serial.get(i).subscription, parallel.get(i).subscription);
+            assertSame(serial.get(i).object, parallel.get(i).object);
+        }
+    }
+
+    @Test
+    public void buildsPayloadsWhenParallel() throws JSONException {
+        for (ElementMatcher.Match match : mParallel.match(chats(2000), observe(50), SUBJECT)) {
+            assertEquals(match.subscription.getKey() + ' ' + match.object.getString("subject"), match.payload);
+        }
+    }
+
+    @Test
+    public void skipsPayloadsWhenSerial() throws JSONException {
+        //below the threshold even with workers
+        for (ElementMatcher.Match match : mParallel.match(chats(100), observe(2), SUBJECT)) {
+            assertNull(match.payload);
+        }
+        for (ElementMatcher.Match match : mSerial.match(chats(2000), observe(50), SUBJECT)) {
+            assertNull(match.payload);
+        }
+    }
+
+    @Test
+    public void reportsPayloadFailures() throws JSONException {
+        try {
+            mParallel.match(chats(2000), observe(50), new ElementMatcher.PayloadBuilder() {
+                @Override
+                public Object build(SubscriptionRegistry.Subscription subscription, JSONObject object) throws JSONException {
+                    throw new JSONException("bad element");
+                }
+            });
+            fail("expected JSONException");
+        } catch (JSONException je) {
+            assertTrue(je.getMessage().contains("bad element"));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class MessageFilterTest {
+    private final MessageFilter mFilter = new MessageFilter("aggregate-", "search-");
+
+    @Test
+    public void acceptsOnlyObservedLists() {
+        mFilter.setLists(Arrays.asList("chat", "global"));
+        assertTrue(mFilter.acceptList("chat", null));
+        assertFalse(mFilter.acceptList("chatMessage", null));
+        assertFalse(mFilter.acceptList(null, null));
+    }
+
+    @Test
+    public void replacesLists() {
+        mFilter.setLists(Collections.singleton("chatMessage"));
+        mFilter.setLists(Collections.singleton("chat"));
+        assertFalse(mFilter.acceptList("chatMessage", null));
+        assertTrue(mFilter.acceptList("chat", null));
+    }
+
+    @Test
+    public void acceptsAnswersToOwnRequests() {
+        assertTrue(mFilter.acceptList("chat", "search-1"));
+        assertTrue(mFilter.acceptList("chatMessage", "aggregate-1"));
+        assertFalse(mFilter.acceptList("chat", "other-1"));
+    }
+
+    @Test
+    public void acceptsOnlyObservedMessages() {
+        mFilter.setMessages(Collections.singleton("chatMessageReadAck"));
+        assertTrue(mFilter.acceptMessage("chatMessageReadAck"));
+        assertFalse(mFilter.acceptMessage("listAll"));
+    }
+
+    @Test
+    public void countsAcceptedAndSkipped() throws JSONException {
+        mFilter.setLists(Collections.singleton("chat"));
+        mFilter.acceptList("chat", null);
+        mFilter.acceptList("chatMessage", null);
+        mFilter.acceptList("typing", null);
+        JSONObject stats = mFilter.getStats();
+        assertEquals(1, stats.getLong("accepted"));
+        assertEquals(2, stats.getLong("skipped"));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+    //what the queue sent, as action:type:elements or invoke:object
+    private final ArrayList<String> mSent = new ArrayList<>();
+    private OutboundQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new OutboundQueue(new OutboundQueue.Sender() {
+            @Override
+            public void sendInvoke(JSONObject object) {
+                mSent.add("invoke:" + object);
+            }
+
+            @Override
+            public void sendMutate(String action, String type, JSONArray elements) {
+                mSent.add(action + ":" + type + ":" + elements);
+            }
+        });
+    }
+
+    private static JSONArray typing(final String chatId, final String extra) throws JSONException {
+        JSONObject element = new JSONObject();
+        element.put("userUri", "user");
+        element.put("chatId", chatId);
+        if (extra != null) {
+            element.put("extra", extra);
+        }
+        return new JSONArray().put(element);
+    }
+
+    private static JSONObject read(final String chatId, final String messageId) throws JSONException {
+        JSONObject params = new JSONObject();
+        params.put("chatId", chatId);
+        params.put("messageId", messageId);
+        return new JSONObject().put("chatMessageRead", params);
+    }
+
+    @Test
+    public void sendsWhileStateUnknown() throws JSONException {
+        assertFalse(mQueue.isStateKnown());
+        assertFalse(mQueue.offerMutate("requestListChange", "typing", typing("1", "a")));
+        assertFalse(mQueue.offerInvoke(read("1", "5")));
+    }
+
+    @Test
+    public void coalescesChangesWhileOffline() throws JSONException {
+        mQueue.setOnline(false);
+        assertTrue(mQueue.offerMutate("requestListChange", "typing", typing("1", "a")));
+        assertTrue(mQueue.offerMutate("requestListChange", "typing", typing("1", "b")));
+        assertTrue(mSent.isEmpty());
+
+        mQueue.setOnline(true);
+        assertEquals(1, mSent.size());
+        assertTrue(mSent.get(0).contains("\"extra\":\"b\""));
+        assertFalse(mSent.get(0).contains("\"extra\":\"a\""));
+    }
+
+    @Test
+    public void keepsHighestRead() throws JSONException {
+        mQueue.setOnline(false);
+        assertTrue(mQueue.offerInvoke(read("1", "9")));
+        assertTrue(mQueue.offerInvoke(read("1", "10")));
+        assertTrue(mQueue.offerInvoke(read("1", "3")));
+
+        mQueue.setOnline(true);
+        assertEquals(1, mSent.size());
+        assertTrue(mSent.get(0).contains("\"messageId\":\"10\""));
+    }
+
+    @Test
+    public void removeDropsHeldChanges() throws JSONException {
+        mQueue.setOnline(false);
+        mQueue.offerMutate("requestListChange", "typing", typing("1", "a"));
+        mQueue.offerMutate("requestListChange", "typing", typing("2", "a"));
+        assertFalse(mQueue.offerMutate("requestListRemove", "typing", typing("1", null)));
+        assertTrue(mSent.isEmpty());
+
+        mQueue.setOnline(true);
+        assertEquals(1, mSent.size());
+        assertTrue(mSent.get(0).contains("\"chatId\":\"2\""));
+    }
+
+    @Test
+    public void addSendsHeldChangesFirst() throws JSONException {
+        mQueue.setOnline(false);
+        mQueue.offerMutate("requestListChange", "typing", typing("1", "a"));
+        assertFalse(mQueue.offerMutate("requestListAdd", "typing", typing("1", null)));
+        assertEquals(1, mSent.size());
+        assertTrue(mSent.get(0).startsWith("requestListChange:typing:"));
+
+        mQueue.setOnline(true);
+        assertEquals(1, mSent.size());
+    }
+
+    @Test
+    public void clearDropsEverything() throws JSONException {
+        mQueue.setOnline(false);
+        mQueue.offerMutate("requestListChange", "typing", typing("1", "a"));
+        mQueue.offerInvoke(read("1", "5"));
+        mQueue.clear();
+
+        mQueue.setOnline(true);
+        assertTrue(mSent.isEmpty());
+    }
+
+    @Test
+    public void flushSendsWhileOffline() throws JSONException {
+        mQueue.setOnline(false);
+        mQueue.offerMutate("requestListChange", "typing", typing("1", "a"));
+        mQueue.offerInvoke(read("1", "5"));
+        mQueue.flush();
+        assertEquals(2, mSent.size());
+    }
+}
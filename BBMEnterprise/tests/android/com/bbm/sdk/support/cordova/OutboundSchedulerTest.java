@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+public class OutboundSchedulerTest {
+    private final OutboundScheduler mScheduler = new OutboundScheduler();
+    private final List<String> mSent = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void shutdown() {
+        mScheduler.shutdown();
+    }
+
+    private void schedule(final OutboundScheduler.Priority priority, final String inFlightKey, final String name) {
+        mScheduler.schedule(priority, inFlightKey, new Runnable() {
+            @Override
+            public void run() {
+                mSent.add(name);
+            }
+        });
+    }
+
+    //holds the scheduler thread until the returned latch is counted down
+    private CountDownLatch block() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.schedule(OutboundScheduler.Priority.USER, null, new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        blocked.await();
+        return release;
+    }
+
+    @Test
+    public void sendsInWeightedRoundRobin() throws InterruptedException {
+        CountDownLatch release = block();
+        for (int i = 1; i <= 6; ++i) {
+            schedule(OutboundScheduler.Priority.USER, null, "u" + i);
+        }
+        for (int i = 1; i <= 3; ++i) {
+            schedule(OutboundScheduler.Priority.VISIBLE, null, "v" + i);
+            schedule(OutboundScheduler.Priority.BACKGROUND, null, "b" + i);
+        }
+        release.countDown();
+        mScheduler.waitForPending();
+
+        //the blocking message used the first USER credit
+        assertEquals(Arrays.asList("u1", "u2", "u3", "v1", "v2", "b1", "u4", "u5", "u6", "v3", "b2", "b3"), mSent);
+    }
+
+    @Test
+    public void limitsBulkRequestsInFlight() throws InterruptedException, JSONException {
+        for (int i = 1; i <= 6; ++i) {
+            schedule(OutboundScheduler.Priority.BACKGROUND, "search-" + i, "b" + i);
+        }
+        mScheduler.waitForPending();
+        assertEquals(Arrays.asList("b1", "b2", "b3", "b4"), mSent);
+
+        //other classes are not held back
+        schedule(OutboundScheduler.Priority.VISIBLE, null, "v1");
+        mScheduler.waitForPending();
+        assertEquals(5, mSent.size());
+
+        mScheduler.onListMessage("listElements", new JSONObject().put("type", "chatMessage").put("cookie", "search-2"));
+        mScheduler.waitForPending();
+        assertEquals(Arrays.asList("b1", "b2", "b3", "b4", "v1", "b5"), mSent);
+    }
+
+    @Test
+    public void releasesRequestListAllOnAnyListMessage() throws InterruptedException, JSONException {
+        for (String listName : new String[] {"chat", "user", "chatMessage", "participant", "global"}) {
+            schedule(OutboundScheduler.Priority.BACKGROUND, OutboundScheduler.requestListAllKey(listName), listName);
+        }
+        mScheduler.waitForPending();
+        assertEquals(4, mSent.size());
+
+        mScheduler.onListMessage("listChunk", new JSONObject().put("type", "user"));
+        mScheduler.waitForPending();
+        assertEquals("global", mSent.get(4));
+    }
+
+    @Test
+    public void keepsSendingAfterAFailure() throws InterruptedException {
+        mScheduler.schedule(OutboundScheduler.Priority.USER, null, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("not connected");
+            }
+        });
+        schedule(OutboundScheduler.Priority.USER, null, "u1");
+        mScheduler.waitForPending();
+        assertEquals(Collections.singletonList("u1"), mSent);
+    }
+
+    @Test
+    public void reportsStats() throws InterruptedException, JSONException {
+        schedule(OutboundScheduler.Priority.USER, null, "u1");
+        schedule(OutboundScheduler.Priority.BACKGROUND, "search-1", "b1");
+        mScheduler.waitForPending();
+
+        JSONObject stats = mScheduler.getStats();
+        assertEquals(1, stats.getJSONObject("user").getLong("sent"));
+        assertEquals(0, stats.getJSONObject("visible").getLong("sent"));
+        assertEquals(1, stats.getJSONObject("background").getLong("sent"));
+        assertEquals(1, stats.getInt("bulkInFlight"));
+    }
+}
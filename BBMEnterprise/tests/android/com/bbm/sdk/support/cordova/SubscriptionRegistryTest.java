@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bbm.sdk.support.cordova;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SubscriptionRegistryTest {
+    private final List<SubscriptionRegistry.Subscription> mEvicted = new ArrayList<>();
+    private final SubscriptionRegistry mRegistry = new SubscriptionRegistry(new SubscriptionRegistry.EvictionListener() {
+        @Override
+        public void onEvicted(SubscriptionRegistry.Subscription subscription) {
+            mEvicted.add(subscription);
+        }
+    });
+
+    private static JSONObject chat(final String chatId) throws JSONException {
+        return new JSONObject().put("chatId", chatId);
+    }
+
+    @Test
+    public void sharesSubscriptionAcrossPropertyOrders() throws JSONException {
+        JSONObject first = new JSONObject("{\"chatId\":\"1\",\"messageId\":\"2\"}");
+        JSONObject second = new JSONObject("{\"messageId\":\"2\",\"chatId\":\"1\"}");
+        assertTrue(mRegistry.observe("chatMessage", first));
+        assertFalse(mRegistry.observe("chatMessage", first));
+        mRegistry.observe("chatMessage", second);
+
+        assertEquals(1, mRegistry.size());
+        SubscriptionRegistry.Subscription[] subscriptions = mRegistry.get("chatMessage");
+        assertEquals(1, subscriptions.length);
+        assertTrue(subscriptions[0].matches(new JSONObject().put("chatId", "1").put("messageId", "2").put("content", "hi")));
+        assertFalse(subscriptions[0].matches(new JSONObject().put("chatId", "1").put("messageId", "3")));
+
+        //live until every observer in either order released it
+        mRegistry.release("chatMessage", first);
+        mRegistry.release("chatMessage", second);
+        assertEquals(1, mRegistry.size());
+        mRegistry.release("chatMessage", first);
+        assertEquals(0, mRegistry.size());
+    }
+
+    @Test
+    public void releasesByReference() throws JSONException {
+        mRegistry.observe("chat", chat("1"));
+        mRegistry.observe("chat", chat("1"));
+        assertTrue(mRegistry.release("chat", chat("1")));
+        assertEquals(1, mRegistry.get("chat").length);
+        assertTrue(mRegistry.release("chat", chat("1")));
+        assertEquals(0, mRegistry.get("chat").length);
+        assertEquals(0, mRegistry.size());
+        assertFalse(mRegistry.release("chat", chat("1")));
+        assertFalse(mRegistry.release("chat", chat("2")));
+    }
+
+    @Test
+    public void cachesReleasedSubscriptions() throws JSONException {
+        mRegistry.observe("chat", chat("1"));
+        SubscriptionRegistry.Subscription subscription = mRegistry.get("chat")[0];
+        mRegistry.release("chat", chat("1"));
+
+        String key = SubscriptionRegistry.canonicalKey(chat("1"));
+        assertTrue(mRegistry.isReleased("chat", key));
+        assertNull(mRegistry.get("chat", key));
+        assertTrue(mRegistry.getListNames().isEmpty());
+        assertEquals(chat("1").toString(), subscription.getReleasedAlias());
+
+        //observing again revives the same subscription, the element is still requested
+        assertTrue(mRegistry.observe("chat", chat("1")));
+        assertSame(subscription, mRegistry.get("chat", key));
+        assertFalse(mRegistry.isReleased("chat", key));
+        assertNull(subscription.getReleasedAlias());
+        assertEquals(1, mRegistry.getStats().getLong("revived"));
+        assertTrue(mEvicted.isEmpty());
+    }
+
+    @Test
+    public void evictsReleasedLongestAgo() throws JSONException {
+        for (int i = 0; i <= SubscriptionRegistry.MAX_RELEASED; ++i) {
+            mRegistry.observe("chat", chat(Integer.toString(i)));
+        }
+        for (int i = 0; i <= SubscriptionRegistry.MAX_RELEASED; ++i) {
+            mRegistry.release("chat", chat(Integer.toString(i)));
+        }
+
+        assertEquals(1, mEvicted.size());
+        assertEquals(chat("0").toString(), mEvicted.get(0).getReleasedAlias());
+        assertFalse(mRegistry.isReleased("chat", SubscriptionRegistry.canonicalKey(chat("0"))));
+        assertTrue(mRegistry.isReleased("chat", SubscriptionRegistry.canonicalKey(chat("1"))));
+
+        JSONObject stats = mRegistry.getStats();
+        assertEquals(SubscriptionRegistry.MAX_RELEASED, stats.getInt("released"));
+        assertEquals(1, stats.getLong("evicted"));
+    }
+
+    @Test
+    public void evictsEveryReleased() throws JSONException {
+        mRegistry.observe("chat", chat("1"));
+        mRegistry.observe("chat", chat("2"));
+        mRegistry.release("chat", chat("1"));
+
+        mRegistry.evictReleased();
+        assertEquals(1, mEvicted.size());
+        assertEquals(1, mRegistry.size());
+        assertFalse(mRegistry.isReleased("chat", SubscriptionRegistry.canonicalKey(chat("1"))));
+    }
+
+    @Test
+    public void clearDropsEverythingWithoutEvicting() throws JSONException {
+        mRegistry.observe("chat", chat("1"));
+        mRegistry.observe("user", new JSONObject().put("regId", "3"));
+        mRegistry.release("chat", chat("1"));
+
+        assertEquals(2, mRegistry.clear().size());
+        assertEquals(0, mRegistry.size());
+        assertTrue(mRegistry.getListNames().isEmpty());
+        assertFalse(mRegistry.isReleased("chat", SubscriptionRegistry.canonicalKey(chat("1"))));
+        assertTrue(mEvicted.isEmpty());
+        assertEquals(0, mRegistry.getStats().getInt("released"));
+    }
+
+    @Test
+    public void canonicalKeySortsNestedNames() throws JSONException {
+        JSONObject first = new JSONObject("{\"b\":{\"y\":1,\"x\":2},\"a\":[{\"q\":1,\"p\":2},[{\"n\":1,\"m\":2}],3]}");
+        JSONObject second = new JSONObject("{\"a\":[{\"p\":2,\"q\":1},[{\"m\":2,\"n\":1}],3],\"b\":{\"x\":2,\"y\":1}}");
+        assertEquals(SubscriptionRegistry.canonicalKey(first), SubscriptionRegistry.canonicalKey(second));
+        assertEquals("{\"a\":[{\"p\":2,\"q\":1},[{\"m\":2,\"n\":1}],3],\"b\":{\"x\":2,\"y\":1}}", SubscriptionRegistry.canonicalKey(first));
+
+        //the order of array elements matters
+        JSONObject reordered = new JSONObject("{\"a\":[3,[{\"m\":2,\"n\":1}],{\"p\":2,\"q\":1}],\"b\":{\"x\":2,\"y\":1}}");
+        assertFalse(SubscriptionRegistry.canonicalKey(first).equals(SubscriptionRegistry.canonicalKey(reordered)));
+    }
+
+    @Test
+    public void requestsElementsWithTheirProperties() throws JSONException {
+        mRegistry.observe("global", new JSONObject().put("name", "localUri"));
+        SubscriptionRegistry.Subscription subscription = mRegistry.get("global")[0];
+        assertNotNull(subscription);
+        assertEquals("localUri", subscription.toJSON().getString("name"));
+        assertArrayEquals(new Object[] {"global"}, mRegistry.getListNames().toArray());
+    }
+}
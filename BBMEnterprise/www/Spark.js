@@ -23,6 +23,7 @@ const Messages = require('./classes/Messages');
 const Message = require('./utils/Message');
 const IncomingMessages = require('./classes/IncomingMessages');
 const GlobalMessages = require('./classes/Globals');
+const Aggregates = require('./classes/Aggregates');
 
 /**
  * @class Spark
@@ -48,6 +49,18 @@ const GlobalMessages = require('./classes/Globals');
  *   "Windows PC" or "Firefox". This information about the endpoint will be
  *   displayed by other devices doing endpoint management. The maximum length
  *   is 2000 codepoints. Anything longer will be truncated.
+ * @param {boolean} [object.warmUpCalls]
+ *   When true, the call manager is started as soon as the Spark SDK is
+ *   started instead of waiting for handleIncomingCalls or makeCall. This
+ *   shortens the time to show the first call screen. The default is false.
+ * @param {boolean} [object.storeChatMessages]
+ *   When true, the most recent chat messages are kept on the device so
+ *   getStoredChatMessages can show a chat's history right away. The messages
+ *   are stored unencrypted in the app's private files directory, in
+ *   files/spark/chatMessages.log on Android. They are kept when the app exits,
+ *   so they can be shown on the next cold start. They are deleted when BBM
+ *   Enterprise stops, such as on a wipe, sign out or fatal error, or when the
+ *   Spark SDK is started without this option. The default is false.
  */
 class Spark {
   constructor (configuration) {
@@ -62,6 +75,14 @@ class Spark {
       return 'Spark';
     };
 
+    // Add an observable for the connection state. This reports one of the
+    // values in Spark.ConnectionState.
+    this.connectionState = new Observable();
+    this.connectionState._property = {value: 'connectionState'};
+    this.connectionState.getObjectId = () => {
+      return 'Spark';
+    };
+
     // Add an observable for the non-list messages.
     this.messages = new IncomingMessagesClass();
 
@@ -73,6 +94,9 @@ class Spark {
     // Add observables for the globals.
     this.globals = Lists.globals;
 
+    // Add observables for the aggregates computed on the native side.
+    this.aggregates = Aggregates.aggregates;
+
     monitor.start();
   }
 
@@ -82,7 +106,9 @@ class Spark {
   setupStart() {
     const config = this._configuration;
     const environment = config.environment ? config.environment : 'Sandbox';
-    const params = [config.domain, environment, config.description];
+    const params = [config.domain, environment, config.description,
+                    config.warmUpCalls === true,
+                    config.storeChatMessages === true];
 
     Cordova.exec(
       () => {},
@@ -188,7 +214,9 @@ class Spark {
    *                              call.
    * @param {string} regId the recipient of the call.
    * @returns {Promise} A promise indicating whether the call succeeded or
-   *                    failed.
+   *                    failed. On Android it resolves once the call screen is
+   *                    shown, with an object whose setupTime is the number of
+   *                    milliseconds it took to show.
    */
   makeCall(options) {
     return new Promise((resolve, reject) => {
@@ -200,6 +228,139 @@ class Spark {
         [options]);
     });
   }
+
+  /**
+   * Get the newest messages of a chat that were stored on the device the last
+   * time they were seen. This returns right away, so a chat's history can be
+   * shown while observing the chatMessage list catches up. Only the most
+   * recent messages of recently used chats are stored.
+   *
+   * This is only supported on Android, and only when storeChatMessages was
+   * set in the configuration. The promise is rejected otherwise.
+   *
+   * @param {string} chatId The chat to get the messages of.
+   * @param {number} count The maximum number of messages to get.
+   * @returns {Promise} A promise resolved with an array of chatMessage
+   *                    elements, oldest first.
+   */
+  getStoredChatMessages(chatId, count) {
+    return new Promise((resolve, reject) => {
+      Cordova.exec(
+        result => { resolve(result); },
+        error => { reject(error); },
+        'SparkProxy',
+        'getStoredChatMessages',
+        [chatId, count]);
+    });
+  }
+
+  /**
+   * Search the content of the chat messages seen since the app started. Only
+   * messages containing every word of the query match. Matches are ranked by
+   * how often and how rarely the words occur, newest first for equal ranks.
+   *
+   * Searching one chat loads all of its older messages from the SDK in the
+   * background. Until that is done the result has complete set to false, and
+   * searching again afterwards finds every message of the chat.
+   *
+   * To bound memory at most 20000 messages are searchable, dropping whole
+   * chats updated least recently first. A single chat with more messages
+   * than that only has its newest 20000 searchable. The index is cleared when
+   * the session ends.
+   *
+   * This is only supported on Android.
+   *
+   * @param {string} query The words to search for.
+   * @param {Object} [options] Options to control the search.
+   * @param {string} [options.chatId] Only search the messages of this chat.
+   * @param {number} [options.offset] The number of matches to skip, for
+   *                                  paging. The default is 0.
+   * @param {number} [options.limit] The maximum number of matches to return.
+   *                                 The default is 20.
+   * @returns {Promise} A promise resolved with an object whose total is the
+   *                    number of matches, and whose results are the requested
+   *                    page of matches, each with a chatId, messageId, score
+   *                    and snippet of the content. When options.chatId is
+   *                    passed it also has complete, which is true once every
+   *                    message of the chat was searched.
+   */
+  searchChatMessages(query, options) {
+    return new Promise((resolve, reject) => {
+      Cordova.exec(
+        result => { resolve(result); },
+        error => { reject(error); },
+        'SparkProxy',
+        'searchChatMessages',
+        options ? [query, options] : [query]);
+    });
+  }
+
+  /**
+   * Get statistics collected by the native side of the plugin.
+   *
+   * @returns {Promise} A promise resolved with an object holding the
+   *                    statistics, such as calls.lastSetupTime and
+   *                    calls.averageSetupTime in milliseconds, or
+   *                    messageFilter.skipped for the number of messages from
+   *                    the SDK dropped because nothing observed them, or
+   *                    outboundScheduler.user.averageWait for how long in
+   *                    milliseconds messages sent by the app waited to be
+   *                    sent to the SDK, or subscriptions.size for the number
+   *                    of list elements observed and subscriptions.released
+   *                    for those no longer observed but still cached.
+   */
+  getStats() {
+    return new Promise((resolve, reject) => {
+      Cordova.exec(
+        result => { resolve(result); },
+        error => { reject(error); },
+        'SparkProxy',
+        'getStats',
+        []);
+    });
+  }
+
+  /**
+   * Start tracing the latency of events from the SDK to the application's
+   * handlers. Sampled events are timed as they arrive from the SDK, are
+   * processed and serialized by the native side, cross the bridge and are
+   * handled, and written to a file in the Chrome trace event format that can
+   * be opened in chrome://tracing or Perfetto. Only the five newest trace
+   * files are kept, older ones are deleted when tracing starts.
+   *
+   * @param {object} [options]
+   * @param {number} [options.sampleRate] The fraction of messages from the SDK
+   *                 to trace, from 0 to 1. Defaults to 0.1.
+   * @returns {Promise} A promise resolved with the path of the trace file.
+   */
+  traceStart(options) {
+    return new Promise((resolve, reject) => {
+      Cordova.exec(
+        result => { resolve(result); },
+        error => { reject(error); },
+        'SparkProxy',
+        'traceStart',
+        options ? [options] : []);
+    });
+  }
+
+  /**
+   * Stop tracing started by traceStart and close the trace file.
+   *
+   * @returns {Promise} A promise resolved with the path of the trace file, or
+   *                    null if tracing was not started.
+   */
+  traceStop() {
+    return new Promise((resolve, reject) => {
+      Cordova.exec(
+        // Not tracing is null, whichever way the bridge encodes it.
+        result => { resolve(result || null); },
+        error => { reject(error); },
+        'SparkProxy',
+        'traceStop',
+        []);
+    });
+  }
 }
 
 // Exposed for app to access.
@@ -229,4 +390,27 @@ Spark.State = {
   Failed: 'Failed'
 };
 
+// The connection states reported by Spark#connectionState.
+Spark.ConnectionState = {
+  /**
+   * Indicates that the Spark SDK is connected to the BlackBerry
+   * Infrastructure.
+   */
+  Online: 'Online',
+
+  /**
+   * Indicates that the Spark SDK is not connected to the BlackBerry
+   * Infrastructure. Read markers and list changes are held while offline and
+   * sent when the connection comes back.
+   */
+  Offline: 'Offline',
+
+  /**
+   * Indicates that the Spark SDK has not reported its connection state yet,
+   * such as before it is started. Read markers and list changes are held as
+   * if offline until the state is known.
+   */
+  Unknown: 'Unknown'
+};
+
 module.exports = Spark;
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018 BlackBerry. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+const Observable = require('./utils/Observable');
+
+/**
+ * @class Aggregate
+ *
+ * @classdesc
+ * A value computed on the native side from the chats and chat messages, such
+ * as the number of unread messages. Observing an aggregate avoids observing
+ * every chat and chat message just to count them, since only the aggregate's
+ * value is sent when it changes. The native side loads what it needs from
+ * bbmcore when an aggregate is first observed.
+ *
+ * This is only supported on Android.
+ */
+class Aggregate extends Observable {
+  constructor (property) {
+    super();
+    this._property = property;
+  }
+
+  /**
+   * Override function to get Object ID.
+   */
+  getObjectId() {
+    return 'aggregate';
+  }
+}
+
+module.exports = {
+  aggregates: {
+    /**
+     * The number of unread messages in all chats, the sum of the numUnread of
+     * every chat.
+     */
+    totalUnread: new Aggregate({
+        name: 'totalUnread'
+      }),
+
+    /**
+     * The number of unread messages in a chat, the numUnread of the chat.
+     *
+     * @param {string} chatId The chat to count the unread messages of.
+     * @returns {Aggregate} An observable of the count.
+     */
+    chatUnread: chatId => new Aggregate({
+        name: 'chatUnread',
+        chatId: chatId
+      }),
+
+    /**
+     * The newest message of a chat, or null until it is loaded.
+     *
+     * @param {string} chatId The chat to get the newest message of.
+     * @returns {Aggregate} An observable of the chatMessage element.
+     */
+    chatLastMessage: chatId => new Aggregate({
+        name: 'chatLastMessage',
+        chatId: chatId
+      })
+  }
+};
@@ -19,6 +19,32 @@ let instance;
 
 const makeKey = (key, property) => `${key}.${property ? JSON.stringify(property ): ''}`;
 
+// Wall clock time in milliseconds, with sub millisecond precision when available.
+const now = () => (typeof performance !== 'undefined' && performance.timeOrigin)
+  ? performance.timeOrigin + performance.now()
+  : Date.now();
+
+// The rate the native side limits events to so that each handler gets at least
+// the changes per second it asked for, 0 when any handler wants every change.
+const effectiveMaxRate = (handlerList) => {
+  let maxRate = 0;
+  for (const handler of handlerList.callbacks) {
+    const options = handlerList.options.get(handler);
+    if (!options || !(options.maxRate > 0)) {
+      return 0;
+    }
+    maxRate = Math.max(maxRate, options.maxRate);
+  }
+  return maxRate;
+};
+
+// How long traced event times are batched before being reported to the native side.
+const TRACE_REPORT_DELAY = 1000;
+
+// The event the native side sends when it evicts a released subscription from
+// its cache, the value kept for it here must be dropped too.
+const SUBSCRIPTION_EVICTED = 'SubscriptionEvicted';
+
 /**
  * @class Monitor
  * @classdesc
@@ -34,7 +60,11 @@ class Monitor {
     }
     instance = this;
     this.handlers = new Map();
+    // The last value of things no longer observed that the native side still
+    // caches, so observing them again can start from it.
+    this.released = new Map();
     this.isStarted = false;
+    this.traceReports = [];
   }
 
   /**
@@ -80,8 +110,12 @@ class Monitor {
    * @param {boolean} criterion Whether the property describes a criterion,
    *                  rather than a key.
    * @param {function} handler Property changed handler
+   * @param {object} [options] Options passed to the native side, such as
+   *                 maxRate. When several handlers observe the same thing,
+   *                 the highest maxRate is used, and none if any handler has
+   *                 none.
    */
-  addHandler(key, property, criterion, handler) {
+  addHandler(key, property, criterion, handler, options) {
     // Construct a key for the handlers map.
     const mapEntry = makeKey(key, property);
 
@@ -92,6 +126,8 @@ class Monitor {
       console.log("Monitor.addHandler: mapEntry="+mapEntry+" found handlerList size="+handlerList.size+" value="+JSON.stringify(handlerList.value));
       // If there's already a handler, add it to the list.
       handlerList.callbacks.add(handler);
+      handlerList.options.set(handler, options);
+      this.updateOptions(key, property, criterion, handlerList);
 
       // Invoke the first callback if there's already a cached value. If there
       // isn't, it means another handler just started observing the same thing
@@ -108,10 +144,21 @@ class Monitor {
       // key/property must be observed. The initial cache value is undefined.
       // This will be replaced with a real value once the observeStart provides
       // one.
-      this.handlers.set(mapEntry, {
-                                    value: undefined,
-                                    callbacks: new Set([handler])
-                                  });
+      const newHandlerList = {
+                                value: this.released.get(mapEntry),
+                                callbacks: new Set([handler]),
+                                options: new Map([[handler, options]])
+                              };
+      newHandlerList.maxRate = effectiveMaxRate(newHandlerList);
+      this.handlers.set(mapEntry, newHandlerList);
+
+      // Observed again while the native side still caches it, start from the
+      // last value. The native side still sends the current one.
+      if (this.released.delete(mapEntry)) {
+        setTimeout(() => {
+          handler(newHandlerList.value);
+        }, 0);
+      }
 
       console.log("Monitor: observe: about to call observeStart for key="+key+" property="+JSON.stringify(property));
 
@@ -124,7 +171,8 @@ class Monitor {
         },
         'SparkProxy',
         'observeStart',
-        [ key, property, criterion ]);
+        options ? [ key, property, criterion, options ]
+                : [ key, property, criterion ]);
     }
   }
 
@@ -152,29 +200,66 @@ class Monitor {
 
       // Remove the handler from the list.
       handlerList.callbacks.delete(handler);
+      handlerList.options.delete(handler);
 
-      // If that was the last handler, then stop observing.
+      // If that was the last handler, then stop observing. The value is kept
+      // if the native side caches the subscription, until it is evicted.
       if (handlerList.callbacks.size === 0) {
         this.handlers.delete(mapEntry);
 
         Cordova.exec(
-          () => {},
+          (result) => {
+            if (result === 'cached' && handlerList.value !== undefined
+                && !this.handlers.has(mapEntry)) {
+              this.released.set(mapEntry, handlerList.value);
+            }
+          },
           () => {},
           'SparkProxy',
           'observeStop',
           [ key, property, criterion ]);
+      } else {
+        this.updateOptions(key, property, criterion, handlerList);
       }
     } else {
       console.warn(`Failed to unregister handler for ${key}: no handler present`);
     }
   }
 
+  /**
+   * Tell the native side when the handlers for something already observed
+   * now need a different maxRate.
+   * @param {string} key Object key
+   * @param {object} [property] Object property (event)
+   * @param {boolean} criterion Whether the property describes a criterion,
+   *                  rather than a key.
+   * @param {object} handlerList The handlers registered for the key/property.
+   */
+  updateOptions(key, property, criterion, handlerList) {
+    const maxRate = effectiveMaxRate(handlerList);
+    if (maxRate !== handlerList.maxRate) {
+      handlerList.maxRate = maxRate;
+      Cordova.exec(
+        () => {},
+        (error) => {
+          console.log("Monitor: updateOptions: error="+error+" for key="+key+" property="+JSON.stringify(property));
+        },
+        'SparkProxy',
+        'observeOptions',
+        [ key, property, criterion, { maxRate: maxRate } ]);
+    }
+  }
+
   /**
    * This function is invoked each time the monitored object is changed.
    * @param {string} change JSON string which contains key, property and the 
    * new property value.
    */
   onChangedHandler(change) {
+    // The native side adds a trace id to events it is tracing.
+    const traceId = change[4];
+    const receivedTime = traceId !== undefined ? now() : 0;
+
     //catch and log errors here so that we get some stack info, since errors in callback from cordova don't have much info.
     try {
       console.log("Monitor.onChangedHandler change: "+JSON.stringify(change));
@@ -184,7 +269,10 @@ class Monitor {
 
       const handlerList = this.handlers.get(mapEntry);
 
-      if(handlerList) {
+      if (change[0] === SUBSCRIPTION_EVICTED) {
+        // The native side no longer caches this, so the value kept is dropped.
+        this.released.delete(makeKey(change[1], change[2]));
+      } else if(handlerList) {
         // Update the cached value.
         // Check the "merge" parameter in the map to see if we should merge the new value with the old one if any.
         // Ensure the Object.assign is only used on objects since a global could just be the string value which would fail.
@@ -206,6 +294,33 @@ class Monitor {
     } catch(error) {
       console.warn("Monitor.onChangedHandler: error="+error+" change="+change);
     }
+
+    if (traceId !== undefined) {
+      this.reportTrace(traceId, receivedTime, now());
+    }
+  }
+
+  /**
+   * Report when a traced event was received and handled. Reports are batched
+   * to keep tracing from adding a bridge call for each event.
+   * @param {number} traceId The trace id the native side added to the event.
+   * @param {number} receivedTime When the event was received.
+   * @param {number} handledTime When the handlers were done with the event.
+   */
+  reportTrace(traceId, receivedTime, handledTime) {
+    this.traceReports.push([ traceId, receivedTime, handledTime ]);
+    if (this.traceReports.length === 1) {
+      setTimeout(() => {
+        const reports = this.traceReports;
+        this.traceReports = [];
+        Cordova.exec(
+          () => {},
+          () => {},
+          'SparkProxy',
+          'traceReport',
+          [ reports ]);
+      }, TRACE_REPORT_DELAY);
+    }
   }
 }
 
@@ -40,6 +40,7 @@ class Observable {
   constructor() {
     this._property = undefined;
     this._matching = false;
+    this._options = undefined;
     this.monitor = new Monitor();
   }
 
@@ -100,9 +101,11 @@ class Observable {
       handlerMapEntry.set(handler, transformedHandler);
 
       // Start monitoring.
-      this.monitor.addHandler(key, this._property, this._matching, transformedHandler);
+      this.monitor.addHandler(key, this._property, this._matching, transformedHandler,
+                              this._options);
     } else {
-      this.monitor.addHandler(key, this._property, this._matching, handler);
+      this.monitor.addHandler(key, this._property, this._matching, handler,
+                              this._options);
     }
   }
 
@@ -144,6 +147,24 @@ class Observable {
     }
   }
 
+  /**
+   * Limit how often changes are delivered to the event handlers. This is meant
+   * for elements of lists that change far faster than a screen can redraw,
+   * such as chatMessageFileProgress, typing or stat. Changes that arrive too
+   * quickly are coalesced and the last one is always delivered.
+   *
+   * This must be called before the first event handler is added. It only
+   * applies to the element this observable represents, and is dropped when its
+   * last event handler is removed.
+   *
+   * @param {number} maxRate The maximum number of changes per second.
+   * @returns {Observable} This observable.
+   */
+  throttle(maxRate) {
+    this._options = Object.assign({}, this._options, {maxRate: maxRate});
+    return this;
+  }
+
   /**
    * An alias for addEventListener.
    * @see Observable#addEventListener.